@@ -0,0 +1,64 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+// The rate limits of one direction, uploads or downloads: one bucket for the node's total traffic and one per peer.
+// Callers name a flow, and flows waiting on the same bucket share it fairly by bytes (see TokenBucket).
+// Both rates can be changed while transfers run; 0 means unlimited.
+public class BandwidthLimiter {
+    private final TokenBucket total;
+    private volatile long perPeerRate;
+    private final ConcurrentHashMap<String, TokenBucket> peerBuckets = new ConcurrentHashMap<>();
+
+    public BandwidthLimiter(long totalRate, long perPeerRate) {
+        this.total = new TokenBucket(totalRate);
+        this.perPeerRate = Math.max(0, perPeerRate);
+    }
+
+    public long getTotalRate() {
+        return total.getRate();
+    }
+
+    public void setTotalRate(long bytesPerSecond) {
+        total.setRate(bytesPerSecond);
+    }
+
+    public long getPerPeerRate() {
+        return perPeerRate;
+    }
+
+    public synchronized void setPerPeerRate(long bytesPerSecond) {
+        perPeerRate = Math.max(0, bytesPerSecond);
+        for (TokenBucket bucket : peerBuckets.values()) {
+            bucket.setRate(perPeerRate); // Wakes anyone waiting on the old rate
+        }
+    }
+
+    public boolean isLimited() {
+        return perPeerRate != TokenBucket.UNLIMITED || total.getRate() != TokenBucket.UNLIMITED;
+    }
+
+    // Waits until the bytes may move to or from the peer: first within the peer's own limit, then the node's
+    public void acquire(String peerIP, Object flow, long bytes) throws InterruptedException {
+        if (bytes <= 0) {
+            return;
+        }
+        if (perPeerRate != TokenBucket.UNLIMITED) {
+            peerBucket(peerIP).acquire(flow, bytes);
+        }
+        total.acquire(flow, bytes);
+    }
+
+    // Forgets a peer that left; its bucket starts full if it comes back
+    public void removePeer(String peerIP) {
+        peerBuckets.remove(peerIP);
+    }
+
+    private TokenBucket peerBucket(String peerIP) {
+        TokenBucket bucket = peerBuckets.get(peerIP);
+        if (bucket != null) {
+            return bucket;
+        }
+        synchronized (this) { // Not created during setPerPeerRate, which would miss it
+            return peerBuckets.computeIfAbsent(peerIP, ip -> new TokenBucket(perPeerRate));
+        }
+    }
+}
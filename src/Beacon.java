@@ -0,0 +1,106 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+// The datagram a node broadcasts every few seconds. It only says which catalog version is current;
+// peers pull the listing itself over TCP.
+// Binary form: "P2PB" <format 1> <16-byte node ID> <varint catalog version> <shared secret in UTF-8>.
+// Nodes of protocol 3 send text, Beacon:<node ID>:<catalog version>:<shared secret>, which is still understood.
+public class Beacon {
+    private static final byte[] MAGIC = {'P', '2', 'P', 'B'};
+    private static final byte FORMAT = 1;
+    private static final byte[] TEXT_PREFIX = "Beacon:".getBytes(StandardCharsets.US_ASCII);
+
+    public final String nodeId; // A UUID, new on every start
+    public final long catalogVersion;
+    public final String sharedSecret;
+
+    public Beacon(String nodeId, long catalogVersion, String sharedSecret) {
+        this.nodeId = nodeId;
+        this.catalogVersion = catalogVersion;
+        this.sharedSecret = sharedSecret;
+    }
+
+    public static boolean isBeacon(byte[] data, int offset, int length) {
+        return startsWith(data, offset, length, MAGIC) || startsWith(data, offset, length, TEXT_PREFIX);
+    }
+
+    public byte[] encode() {
+        UUID id = UUID.fromString(nodeId);
+        byte[] secret = sharedSecret.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 1 + 16 + WireProtocol.varLongSize(catalogVersion) + secret.length);
+        buffer.put(MAGIC).put(FORMAT).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits());
+        WireProtocol.putVarLong(buffer, catalogVersion);
+        buffer.put(secret);
+        return buffer.array();
+    }
+
+    // Null if the datagram is not a well-formed beacon or carries another secret. Everything is checked
+    // in the receive buffer, so beacons of other groups on the same network cost no allocation.
+    public static Beacon decode(byte[] data, int offset, int length, byte[] expectedSecret) {
+        if (startsWith(data, offset, length, MAGIC)) {
+            int header = MAGIC.length + 1 + 16;
+            if (length < header + 1 || data[offset + MAGIC.length] != FORMAT) {
+                return null;
+            }
+            int position = offset + header;
+            long catalogVersion = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (position == offset + length || shift == 70) {
+                    return null;
+                }
+                byte b = data[position++];
+                catalogVersion |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            if (!matches(data, position, offset + length, expectedSecret)) {
+                return null;
+            }
+            ByteBuffer id = ByteBuffer.wrap(data, offset + MAGIC.length + 1, 16);
+            return new Beacon(new UUID(id.getLong(), id.getLong()).toString(), catalogVersion, new String(expectedSecret, StandardCharsets.UTF_8));
+        }
+        if (startsWith(data, offset, length, TEXT_PREFIX)) {
+            int end = offset + length;
+            while (end > offset && (data[end - 1] & 0xFF) <= ' ') {
+                end--; // Old nodes trimmed the datagram
+            }
+            int idStart = offset + TEXT_PREFIX.length;
+            int versionStart = indexOf(data, idStart, end, (byte) ':') + 1;
+            int secretStart = versionStart > 0 ? indexOf(data, versionStart, end, (byte) ':') + 1 : 0;
+            if (secretStart <= 0 || secretStart - 1 == versionStart || !matches(data, secretStart, end, expectedSecret)) {
+                return null;
+            }
+            long catalogVersion = 0;
+            for (int i = versionStart; i < secretStart - 1; i++) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9 || catalogVersion > (Long.MAX_VALUE - digit) / 10) {
+                    return null;
+                }
+                catalogVersion = catalogVersion * 10 + digit;
+            }
+            String nodeId = new String(data, idStart, versionStart - 1 - idStart, StandardCharsets.UTF_8);
+            return new Beacon(nodeId, catalogVersion, new String(expectedSecret, StandardCharsets.UTF_8));
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        return length >= prefix.length && Arrays.equals(data, offset, offset + prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static boolean matches(byte[] data, int from, int to, byte[] expected) {
+        return Arrays.equals(data, from, to, expected, 0, expected.length);
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
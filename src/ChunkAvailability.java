@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+// Which chunks of a file a peer can serve, as answered to OP_HAVE (protocol 5).
+// Encoded as <state byte>: 0 the peer does not have the file, 1 it has all of it in any chunk size,
+// 2 it is still downloading it, followed by <varint chunk size> <bitmap of completed chunks, BitSet.toByteArray order>.
+public class ChunkAvailability {
+    private static final byte NONE_STATE = 0;
+    private static final byte COMPLETE_STATE = 1;
+    private static final byte PARTIAL_STATE = 2;
+
+    public static final ChunkAvailability NONE = new ChunkAvailability(NONE_STATE, 0, null);
+    public static final ChunkAvailability COMPLETE = new ChunkAvailability(COMPLETE_STATE, 0, null);
+
+    private final byte state;
+    private final int chunkSize; // Of a partial download; complete files are served in any size
+    private final BitSet chunks; // Null unless partial
+
+    private ChunkAvailability(byte state, int chunkSize, BitSet chunks) {
+        this.state = state;
+        this.chunkSize = chunkSize;
+        this.chunks = chunks;
+    }
+
+    public static ChunkAvailability partial(int chunkSize, BitSet chunks) {
+        return new ChunkAvailability(PARTIAL_STATE, chunkSize, chunks);
+    }
+
+    public boolean isNone() {
+        return state == NONE_STATE;
+    }
+
+    public boolean isComplete() {
+        return state == COMPLETE_STATE;
+    }
+
+    public boolean isPartial() {
+        return state == PARTIAL_STATE;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    // Chunks a partial peer holds; null for complete files
+    public BitSet getChunks() {
+        return chunks;
+    }
+
+    // Whether the peer can serve chunks of this size at all
+    public boolean canServe(int requestedChunkSize) {
+        return isComplete() || (isPartial() && chunkSize == requestedChunkSize);
+    }
+
+    public byte[] encode() {
+        if (!isPartial()) {
+            return new byte[] {state};
+        }
+        byte[] bitmap = chunks.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + WireProtocol.varIntSize(chunkSize) + bitmap.length);
+        buffer.put(state);
+        WireProtocol.putVarInt(buffer, chunkSize);
+        buffer.put(bitmap);
+        return buffer.array();
+    }
+
+    public static ChunkAvailability decode(byte[] encoded) throws IOException {
+        if (encoded.length == 0) {
+            throw new IOException("Empty availability");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        switch (buffer.get()) {
+            case NONE_STATE:
+                return NONE;
+            case COMPLETE_STATE:
+                return COMPLETE;
+            case PARTIAL_STATE:
+                int chunkSize = WireProtocol.getVarInt(buffer);
+                return partial(chunkSize, BitSet.valueOf(buffer));
+            default:
+                throw new IOException("Unknown availability state " + encoded[0]);
+        }
+    }
+}
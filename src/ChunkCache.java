@@ -0,0 +1,253 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Chunks of shared files that peers keep asking for, held in direct buffers outside the Java heap.
+// Capped in bytes and evicted least recently used first, so memory depends on the configured size and
+// not on how many peers download. A chunk is only cached the second time it is asked for while still
+// remembered as recently missed: one peer reading a large file straight through does not flush the popular ones.
+// Deflated chunks are kept under the same cap and admitted at once: deflating is the work a seed must not
+// repeat for every peer. A file whose modification time changed loses all its cached chunks.
+public class ChunkCache {
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+    private static final int RECENT_MISSES = 4096; // Keys remembered to admit a chunk on its second request
+
+    private static final class Key {
+        final Path path;
+        final int chunkSize;
+        final int chunkID;
+        final boolean deflated;
+
+        Key(Path path, int chunkSize, int chunkID, boolean deflated) {
+            this.path = path;
+            this.chunkSize = chunkSize;
+            this.chunkID = chunkID;
+            this.deflated = deflated;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return chunkID == key.chunkID && chunkSize == key.chunkSize && deflated == key.deflated && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, chunkSize, chunkID, deflated);
+        }
+    }
+
+    private static final class CachedFile {
+        final long lastModified;
+        int chunks = 0;
+
+        CachedFile(long lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
+
+    private long capacity;
+    private long size = 0;
+    private final LinkedHashMap<Key, ByteBuffer> chunks = new LinkedHashMap<>(256, 0.75f, true); // Access order for LRU
+    private final Map<Path, CachedFile> files = new HashMap<>(); // Version of the files that have cached chunks
+    private final LinkedHashMap<Key, Boolean> recentMisses = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > RECENT_MISSES;
+        }
+    };
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+    private final Metrics.Counter evictions;
+
+    public ChunkCache(long capacity, Metrics metrics) {
+        this.capacity = Math.max(0, capacity);
+        this.hits = metrics.counter("p2p_chunk_cache_hits_total", "Chunks served from the chunk cache");
+        this.misses = metrics.counter("p2p_chunk_cache_misses_total", "Chunks read from disk with the chunk cache on");
+        this.evictions = metrics.counter("p2p_chunk_cache_evictions_total", "Chunks dropped from the chunk cache to make room");
+        metrics.gauge("p2p_chunk_cache_bytes", "Bytes of chunks in the chunk cache", this::getSize);
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    // 0 turns the cache off and frees what it holds
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        trim();
+        if (this.capacity == 0) {
+            recentMisses.clear();
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    // The chunk as a buffer of its own, ready to be written, or null when it is not worth caching yet
+    // and the caller should send it from the file itself. Reads from disk outside the lock.
+    public ByteBuffer get(Path path, long lastModified, FileChannel file, int chunkSize, int chunkID) throws IOException {
+        Key key = new Key(path, chunkSize, chunkID, false);
+        synchronized (this) {
+            if (capacity == 0) {
+                return null;
+            }
+            invalidateIfChanged(path, lastModified);
+            ByteBuffer chunk = chunks.get(key);
+            if (chunk != null) {
+                hits.increment();
+                return chunk.duplicate();
+            }
+            misses.increment();
+            if (recentMisses.put(key, Boolean.TRUE) == null) {
+                return null; // First miss: remember it and let the caller stream from the file
+            }
+        }
+
+        long chunkStart = (long) chunkID * chunkSize;
+        int chunkLength = (int) Math.max(0, Math.min(chunkSize, file.size() - chunkStart));
+        if (chunkLength == 0) {
+            return null;
+        }
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkLength);
+        readFully(file, chunk, chunkStart, path, chunkID);
+        chunk.flip();
+        put(key, lastModified, chunk);
+        return chunk.duplicate();
+    }
+
+    // The chunk deflated, ready to be written, or null when it is to be sent raw: the file does not compress
+    // or the chunk did not shrink. Works with the cache off too, only without keeping the result.
+    public ByteBuffer getDeflated(Path path, long lastModified, FileChannel file, int chunkSize, int chunkID,
+                                  ChunkCompression compression) throws IOException {
+        if (!compression.shouldTry(path, lastModified)) {
+            return null;
+        }
+        Key key = new Key(path, chunkSize, chunkID, true);
+        ByteBuffer rawChunk = null;
+        synchronized (this) {
+            if (capacity > 0) {
+                invalidateIfChanged(path, lastModified);
+                ByteBuffer chunk = chunks.get(key);
+                if (chunk != null) {
+                    hits.increment();
+                    return chunk.duplicate();
+                }
+                misses.increment();
+                rawChunk = chunks.get(new Key(path, chunkSize, chunkID, false));
+            }
+        }
+
+        byte[] data;
+        if (rawChunk != null) {
+            data = new byte[rawChunk.capacity()];
+            rawChunk.duplicate().get(data);
+        } else {
+            long chunkStart = (long) chunkID * chunkSize;
+            data = new byte[(int) Math.max(0, Math.min(chunkSize, file.size() - chunkStart))];
+            readFully(file, ByteBuffer.wrap(data), chunkStart, path, chunkID);
+        }
+        byte[] deflated = ChunkCompression.deflate(data);
+        compression.record(path, lastModified, data.length, deflated != null ? deflated.length : data.length);
+        if (deflated == null) {
+            return null;
+        }
+        ByteBuffer chunk = ByteBuffer.allocateDirect(deflated.length).put(deflated).flip();
+        put(key, lastModified, chunk);
+        return chunk.duplicate();
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer chunk, long chunkStart, Path path, int chunkID) throws IOException {
+        while (chunk.hasRemaining()) {
+            if (file.read(chunk, chunkStart + chunk.position()) < 0) {
+                throw new EOFException("File shrank while caching chunk " + chunkID + " of " + path);
+            }
+        }
+    }
+
+    private synchronized void put(Key key, long lastModified, ByteBuffer chunk) {
+        if (chunk.capacity() > capacity) {
+            return;
+        }
+        CachedFile cachedFile = files.get(key.path);
+        if (cachedFile != null && cachedFile.lastModified != lastModified) {
+            if (cachedFile.lastModified > lastModified) {
+                return; // Read before a newer version was cached
+            }
+            invalidate(key.path);
+            cachedFile = null;
+        }
+        if (cachedFile == null) {
+            cachedFile = new CachedFile(lastModified);
+            files.put(key.path, cachedFile);
+        }
+        recentMisses.remove(key);
+        ByteBuffer previous = chunks.put(key, chunk);
+        if (previous != null) {
+            size -= previous.capacity(); // Two peers loaded it at the same time
+        } else {
+            cachedFile.chunks++;
+        }
+        size += chunk.capacity();
+        trim();
+    }
+
+    private void invalidateIfChanged(Path path, long lastModified) {
+        CachedFile cachedFile = files.get(path);
+        if (cachedFile != null && cachedFile.lastModified != lastModified) {
+            invalidate(path);
+        }
+    }
+
+    // Drops every chunk of a file, e.g. after it changed on disk
+    public synchronized void invalidate(Path path) {
+        if (files.remove(path) == null) {
+            return;
+        }
+        Iterator<Map.Entry<Key, ByteBuffer>> iterator = chunks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = iterator.next();
+            if (entry.getKey().path.equals(path)) {
+                size -= entry.getValue().capacity();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        chunks.clear();
+        files.clear();
+        recentMisses.clear();
+        size = 0;
+    }
+
+    // Buffers still being written to a peer are freed by the GC once that write is done
+    private void trim() {
+        Iterator<Map.Entry<Key, ByteBuffer>> iterator = chunks.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = iterator.next();
+            size -= entry.getValue().capacity();
+            iterator.remove();
+            evictions.increment();
+            Path path = entry.getKey().path;
+            if (--files.get(path).chunks == 0) {
+                files.remove(path);
+            }
+        }
+    }
+}
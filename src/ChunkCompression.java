@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate at its fastest level for chunks of files that shrink: logs, CSVs, source trees.
+// A downloader asks for it per request (WireProtocol.ACCEPTS_DEFLATE, protocol 7) and the answer starts with
+// an encoding byte. Formats that are compressed already are never tried, and a file whose first PROBE_CHUNKS
+// chunks did not shrink below MAX_RATIO is sent raw until it changes, so a seed spends no CPU on media and archives.
+public class ChunkCompression {
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+    private static final double MAX_RATIO = 0.9; // A chunk must shrink below this share of its size to be sent deflated
+    private static final int PROBE_CHUNKS = 4; // Chunks of a file tried before deciding whether it compresses
+    private static final int MAX_TRACKED_FILES = 4096;
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "7z", "avi", "br", "bz2", "docx", "flac", "gif", "gz", "heic", "jar", "jpeg", "jpg", "lz4", "m4a", "mkv",
+            "mov", "mp3", "mp4", "odt", "ogg", "png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst");
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private static final class FileStats {
+        final long lastModified;
+        int probedChunks = 0;
+        long rawBytes = 0;
+        long compressedBytes = 0;
+
+        FileStats(long lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        boolean compresses() {
+            return probedChunks < PROBE_CHUNKS || compressedBytes < rawBytes * MAX_RATIO;
+        }
+    }
+
+    private final LinkedHashMap<Path, FileStats> statsByPath = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, FileStats> eldest) {
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+
+    // Whether a chunk of the file is worth deflating
+    public synchronized boolean shouldTry(Path path, long lastModified) {
+        if (!isCompressible(path.getFileName().toString())) {
+            return false;
+        }
+        FileStats stats = statsByPath.get(path);
+        return stats == null || stats.lastModified != lastModified || stats.compresses();
+    }
+
+    // The outcome of deflating one chunk; compressedLength is rawLength when it did not shrink
+    public synchronized void record(Path path, long lastModified, int rawLength, int compressedLength) {
+        FileStats stats = statsByPath.get(path);
+        if (stats == null || stats.lastModified != lastModified) {
+            stats = new FileStats(lastModified);
+            statsByPath.put(path, stats);
+        }
+        if (stats.probedChunks < PROBE_CHUNKS) {
+            stats.probedChunks++;
+            stats.rawBytes += rawLength;
+            stats.compressedBytes += compressedLength;
+        }
+    }
+
+    public static boolean isCompressible(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // The deflated data, or null if it would not shrink below MAX_RATIO; gives up as soon as the output passes that
+    public static byte[] deflate(byte[] data) {
+        byte[] output = new byte[(int) (data.length * MAX_RATIO)];
+        Deflater deflater = DEFLATERS.get();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(output, length) : null;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    // An answer to a request that accepted compression: the encoding byte, then the chunk raw or deflated
+    public static byte[] decode(byte[] answer, int maxLength) throws IOException {
+        if (answer.length == 0) {
+            return answer; // The peer does not have the chunk
+        }
+        if (answer[0] == RAW) {
+            return Arrays.copyOfRange(answer, 1, answer.length);
+        }
+        if (answer[0] != DEFLATE) {
+            throw new IOException("Unknown chunk encoding " + answer[0]);
+        }
+        byte[] output = new byte[maxLength];
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(answer, 1, answer.length - 1);
+            int length = 0;
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(output, length, output.length - length);
+                if (inflated == 0 && !inflater.finished()) {
+                    if (length == output.length) {
+                        throw new IOException("Deflated chunk is larger than " + maxLength + " bytes");
+                    }
+                    if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IOException("Truncated deflated chunk");
+                    }
+                }
+                length += inflated;
+            }
+            return length == output.length ? output : Arrays.copyOf(output, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated chunk", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Writes downloaded chunks straight to their offset in a preallocated ".part" file,
+// so a download only holds the chunks currently in flight in memory.
+// A ".progress" sidecar records which chunks are on disk, so a restarted download only fetches
+// the missing chunks, and the completed chunks can be served to other peers in the meantime.
+public class ChunkFileWriter implements AutoCloseable {
+    public static final String PART_SUFFIX = ".part";
+    public static final String PROGRESS_SUFFIX = ".progress";
+    private static final int PROGRESS_MAGIC = 0x50325050; // "P2PP"
+    private static final int PROGRESS_VERSION = 1;
+    private static final long PROGRESS_SAVE_INTERVAL_MILLIS = 1000; // Chunks lost on a crash are at most this old
+
+    private final Path targetPath;
+    private final Path partPath;
+    private final Path progressPath;
+    private final ChunkManifest manifest;
+    private final int chunkSize;
+    private final FileChannel channel;
+    private final BitSet completedChunks; // Guarded by itself
+    private final ReentrantReadWriteLock channelLock = new ReentrantReadWriteLock(); // Writers of chunks vs. closing the file
+    private long lastProgressSave = 0;
+    private final AtomicLong unsavedBytes = new AtomicLong(); // Written since the last progress save
+    private boolean finished = false;
+
+    public ChunkFileWriter(String targetFile, ChunkManifest manifest) throws IOException {
+        this.targetPath = Paths.get(targetFile);
+        this.partPath = Paths.get(targetFile + PART_SUFFIX);
+        this.progressPath = Paths.get(targetFile + PART_SUFFIX + PROGRESS_SUFFIX);
+        this.manifest = manifest;
+        this.chunkSize = manifest.getChunkSize();
+
+        BitSet resumed = loadProgress();
+        if (resumed == null) {
+            // The progress file comes first, so the part file is never seen without it and taken for a user's file.
+            // The full length is reserved up front so chunks can land in any order.
+            resumed = new BitSet(manifest.getChunkCount());
+            writeProgress(resumed);
+            try (RandomAccessFile raf = new RandomAccessFile(partPath.toFile(), "rw")) {
+                raf.setLength(manifest.getFileSize());
+            }
+        }
+        this.completedChunks = resumed;
+        this.channel = FileChannel.open(partPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!resumed.isEmpty()) {
+            verifyResumedChunks();
+        }
+    }
+
+    // A ".part" file is only ours next to its progress file, and a progress file only next to its ".part" file;
+    // a user's file that merely ends the same way is shared like any other
+    public static boolean isDownloadArtifact(Path path) {
+        String filename = path.getFileName().toString();
+        if (filename.endsWith(PART_SUFFIX)) {
+            return Files.exists(path.resolveSibling(filename + PROGRESS_SUFFIX));
+        }
+        if (filename.endsWith(PART_SUFFIX + PROGRESS_SUFFIX)) {
+            return Files.exists(path.resolveSibling(filename.substring(0, filename.length() - PROGRESS_SUFFIX.length())));
+        }
+        if (filename.endsWith(PART_SUFFIX + ".tmp" + PROGRESS_SUFFIX)) {
+            return Files.exists(path.resolveSibling(filename.substring(0, filename.length() - (".tmp" + PROGRESS_SUFFIX).length())));
+        }
+        return false;
+    }
+
+    // Chunk size an interrupted download of this file was using, or 0 if there is nothing to resume
+    public static int savedChunkSize(String targetFile) {
+        Path progressPath = Paths.get(targetFile + PART_SUFFIX + PROGRESS_SUFFIX);
+        if (!Files.isRegularFile(progressPath)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(progressPath)))) {
+            if (in.readInt() != PROGRESS_MAGIC || in.readInt() != PROGRESS_VERSION) {
+                return 0;
+            }
+            in.readLong(); // File size
+            return in.readInt();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    public ChunkManifest getManifest() {
+        return manifest;
+    }
+
+    // Chunks already on disk, e.g. from an earlier run of this download
+    public BitSet getCompletedChunks() {
+        synchronized (completedChunks) {
+            return (BitSet) completedChunks.clone();
+        }
+    }
+
+    public boolean hasChunk(int chunkID) {
+        synchronized (completedChunks) {
+            return completedChunks.get(chunkID);
+        }
+    }
+
+    // Safe to call from several download threads at once; positional writes do not share a file pointer
+    public void writeChunk(int chunkID, byte[] chunkData) throws IOException {
+        channelLock.readLock().lock();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(chunkData);
+            long position = (long) chunkID * chunkSize;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } finally {
+            channelLock.readLock().unlock();
+        }
+
+        boolean saveDue;
+        synchronized (completedChunks) {
+            completedChunks.set(chunkID);
+            unsavedBytes.addAndGet(chunkData.length);
+            long now = System.currentTimeMillis();
+            saveDue = now - lastProgressSave >= PROGRESS_SAVE_INTERVAL_MILLIS;
+            if (saveDue) {
+                lastProgressSave = now;
+            }
+        }
+        if (saveDue) {
+            channelLock.readLock().lock();
+            try {
+                if (!finished) {
+                    saveProgress();
+                }
+            } finally {
+                channelLock.readLock().unlock();
+            }
+        }
+    }
+
+    // Sends a completed chunk to a peer straight from the part file; returns false if the chunk is not here yet
+    public boolean transferChunk(int chunkID, WritableByteChannel target) throws IOException {
+        channelLock.readLock().lock();
+        try {
+            if (finished || !hasChunk(chunkID)) {
+                return false;
+            }
+            long position = (long) chunkID * chunkSize;
+            long end = position + chunkLength(chunkID);
+            while (position < end) {
+                position += channel.transferTo(position, end - position, target);
+            }
+            return true;
+        } finally {
+            channelLock.readLock().unlock();
+        }
+    }
+
+    // Heap copy of a completed chunk, or null if it is not here yet
+    public byte[] readChunk(int chunkID) throws IOException {
+        channelLock.readLock().lock();
+        try {
+            if (finished || !hasChunk(chunkID)) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(chunkLength(chunkID));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, (long) chunkID * chunkSize + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+            return buffer.array();
+        } finally {
+            channelLock.readLock().unlock();
+        }
+    }
+
+    // Bytes a crash would lose: on disk, but not yet recorded as complete in the progress file
+    public long getUnsavedBytes() {
+        return unsavedBytes.get();
+    }
+
+    public int chunkLength(int chunkID) {
+        return (int) Math.min(chunkSize, manifest.getFileSize() - (long) chunkID * chunkSize);
+    }
+
+    // Flushes the data and moves the finished file into place
+    public void complete() throws IOException {
+        channelLock.writeLock().lock();
+        try {
+            channel.force(false);
+            channel.close();
+            Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(progressPath);
+            finished = true;
+            unsavedBytes.set(0);
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    // Discards the partial file and its progress
+    public void abort() {
+        channelLock.writeLock().lock();
+        try {
+            channel.close();
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(progressPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            finished = true;
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    // Keeps the partial file and records its progress so the download can resume later
+    @Override
+    public void close() {
+        channelLock.writeLock().lock();
+        try {
+            if (!finished) {
+                saveProgress();
+                channel.close();
+                finished = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    // The data is forced to disk first, so the bitmap never claims a chunk the disk does not hold
+    private synchronized void saveProgress() throws IOException {
+        long saving;
+        BitSet snapshot;
+        synchronized (completedChunks) {
+            saving = unsavedBytes.get(); // Exactly the chunks in the snapshot that were not saved before
+            snapshot = (BitSet) completedChunks.clone();
+        }
+        channel.force(false);
+        writeProgress(snapshot);
+        unsavedBytes.addAndGet(-saving);
+    }
+
+    private void writeProgress(BitSet snapshot) throws IOException {
+        Path tempPath = Paths.get(partPath + ".tmp" + PROGRESS_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            out.writeInt(PROGRESS_MAGIC);
+            out.writeInt(PROGRESS_VERSION);
+            out.writeLong(manifest.getFileSize());
+            out.writeInt(chunkSize);
+            out.write(manifest.getRootHash());
+            byte[] bitmap = snapshot.toByteArray();
+            out.writeInt(bitmap.length);
+            out.write(bitmap);
+        }
+        Files.move(tempPath, progressPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // A crash, or the disk losing writes, can leave a chunk torn that the bitmap calls complete; those are fetched again
+    private void verifyResumedChunks() throws IOException {
+        for (int chunkID = completedChunks.nextSetBit(0); chunkID >= 0; chunkID = completedChunks.nextSetBit(chunkID + 1)) {
+            if (chunkID >= manifest.getChunkCount()) {
+                completedChunks.clear(chunkID, completedChunks.length());
+                break;
+            }
+            byte[] chunk = readChunk(chunkID);
+            if (chunk == null || !manifest.verify(chunkID, chunk)) {
+                completedChunks.clear(chunkID);
+            }
+        }
+    }
+
+    // Returns the saved bitmap if the part file belongs to this exact file version, otherwise null
+    private BitSet loadProgress() {
+        if (!Files.isRegularFile(partPath) || !Files.isRegularFile(progressPath)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(progressPath)))) {
+            if (in.readInt() != PROGRESS_MAGIC || in.readInt() != PROGRESS_VERSION) {
+                return null;
+            }
+            long fileSize = in.readLong();
+            int savedChunkSize = in.readInt();
+            byte[] rootHash = new byte[ChunkManifest.HASH_LENGTH];
+            in.readFully(rootHash);
+            if (fileSize != manifest.getFileSize() || savedChunkSize != chunkSize
+                    || !MessageDigest.isEqual(rootHash, manifest.getRootHash()) || Files.size(partPath) != fileSize) {
+                return null; // The remote file changed since this download started
+            }
+            byte[] bitmap = new byte[in.readInt()];
+            in.readFully(bitmap);
+            return BitSet.valueOf(bitmap);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
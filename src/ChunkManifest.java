@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// SHA-256 hash of every chunk of a file, plus a root hash over the chunk hashes that identifies the content
+public class ChunkManifest {
+    public static final int HASH_LENGTH = 32; // SHA-256
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(ChunkManifest::newDigest);
+    private static final ThreadLocal<ByteBuffer> READ_BUFFERS = new ThreadLocal<>();
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final byte[][] chunkHashes;
+    private final byte[] rootHash;
+    private int[] checksums; // DeltaSync checksums read in the same pass, or null; never sent with the manifest
+
+    public ChunkManifest(long fileSize, int chunkSize, byte[][] chunkHashes) {
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkHashes = chunkHashes;
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        for (byte[] chunkHash : chunkHashes) {
+            digest.update(chunkHash);
+        }
+        this.rootHash = digest.digest();
+    }
+
+    public static ChunkManifest compute(Path path, int chunkSize) throws IOException {
+        return compute(path, chunkSize, false);
+    }
+
+    // Hashes the chunks in parallel; each worker reads its chunks with positional reads on a shared channel.
+    // With withChecksums the DeltaSync checksums are taken from the same reads.
+    public static ChunkManifest compute(Path path, int chunkSize, boolean withChecksums) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+            byte[][] chunkHashes = new byte[chunkCount][];
+            int[] checksums = withChecksums ? new int[chunkCount] : null;
+            try {
+                IntStream.range(0, chunkCount).parallel().forEach(chunkID -> {
+                    try {
+                        chunkHashes[chunkID] = hashChunk(channel, (long) chunkID * chunkSize, (int) Math.min(chunkSize, fileSize - (long) chunkID * chunkSize),
+                                checksums, chunkID);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            ChunkManifest manifest = new ChunkManifest(fileSize, chunkSize, chunkHashes);
+            manifest.checksums = checksums;
+            return manifest;
+        }
+    }
+
+    private static byte[] hashChunk(FileChannel channel, long position, int length, int[] checksums, int chunkID) throws IOException {
+        ByteBuffer buffer = READ_BUFFERS.get();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(length);
+            READ_BUFFERS.set(buffer);
+        }
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File shrank while hashing");
+            }
+        }
+        buffer.flip();
+        if (checksums != null) {
+            checksums[chunkID] = DeltaSync.checksum(buffer.duplicate());
+        }
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    public static byte[] hash(byte[] data) {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        return digest.digest(data);
+    }
+
+    public boolean verify(int chunkID, byte[] chunkData) {
+        return chunkID >= 0 && chunkID < chunkHashes.length && MessageDigest.isEqual(chunkHashes[chunkID], hash(chunkData));
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkHashes.length;
+    }
+
+    // Only set on a manifest computed with them, never on one received from a peer
+    public int[] getChecksums() {
+        return checksums;
+    }
+
+    public byte[] getChunkHash(int chunkID) {
+        return chunkHashes[chunkID];
+    }
+
+    public byte[] getRootHash() {
+        return rootHash.clone();
+    }
+
+    // Wire form: file size, chunk size, chunk count, then the chunk hashes
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES * 2 + chunkHashes.length * HASH_LENGTH);
+        buffer.putLong(fileSize).putInt(chunkSize).putInt(chunkHashes.length);
+        for (byte[] chunkHash : chunkHashes) {
+            buffer.put(chunkHash);
+        }
+        return buffer.array();
+    }
+
+    public static ChunkManifest decode(byte[] encoded) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        if (buffer.remaining() < Long.BYTES + Integer.BYTES * 2) {
+            throw new IOException("Truncated manifest");
+        }
+        long fileSize = buffer.getLong();
+        int chunkSize = buffer.getInt();
+        int chunkCount = buffer.getInt();
+        if (chunkSize <= 0 || chunkCount < 0 || buffer.remaining() != (long) chunkCount * HASH_LENGTH
+                || chunkCount != (int) ((fileSize + chunkSize - 1) / chunkSize)) {
+            throw new IOException("Malformed manifest");
+        }
+        byte[][] chunkHashes = new byte[chunkCount][HASH_LENGTH];
+        for (byte[] chunkHash : chunkHashes) {
+            buffer.get(chunkHash);
+        }
+        return new ChunkManifest(fileSize, chunkSize, chunkHashes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ChunkManifest && Arrays.equals(rootHash, ((ChunkManifest) other).rootHash)
+                && fileSize == ((ChunkManifest) other).fileSize && chunkSize == ((ChunkManifest) other).chunkSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(rootHash);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java runtime", e);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Hands out the chunks of one download to its peers. Every peer pulls its next chunk when a request
+// finishes, so fast peers take more of the file, and a peer's in-flight window shrinks when it is
+// slower than the fastest peer. Once nothing is left to hand out, idle peers re-request chunks that
+// are still stuck on another peer, and the first copy to arrive wins. With a manifest, every chunk is
+// checked against its hash and a bad chunk is fetched again from a different peer.
+// Small chunks can be requested several at a time, so the per-request overhead is paid once per batch.
+// Peers that are still downloading the file themselves only get chunks they hold. Once such peers are known,
+// the chunk held by the fewest of them goes first (rarest first), so the swarm spreads its copies and the
+// original seed is not the only source of every chunk.
+public class ChunkScheduler {
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_PEER = 4;
+    private static final int BATCH_TARGET_BYTES = 1024 * 1024; // Chunks smaller than this are batched up to about this size
+    private static final int MAX_PEER_FAILURES = 3; // Failures in a row before a peer is dropped from the download
+    private static final int MAX_COPIES_IN_FLIGHT = 2; // Requests for the same chunk during the endgame
+    private static final double RATE_SMOOTHING = 0.3; // Weight of the newest sample in a peer's throughput average
+
+    public interface ChunkFetcher {
+        byte[] fetch(String peerIP, int chunkID);
+    }
+
+    // Fetches all the chunks with one request; a chunk that did not arrive is null or empty.
+    // It may block, e.g. on a rate limit, and is interrupted when the download is abandoned.
+    public interface BatchFetcher {
+        byte[][] fetch(String peerIP, int[] chunkIDs) throws InterruptedException;
+    }
+
+    public interface ChunkListener {
+        void onChunk(String peerIP, int chunkID, byte[] chunkData) throws IOException;
+    }
+
+    private static class PeerState {
+        final String peerIP;
+        int inFlight = 0;
+        int failures = 0;
+        double bytesPerSecond = 0; // 0 until the first chunk arrives
+        boolean dropped = false;
+        BitSet chunks; // What a partial peer holds; null for a peer with the whole file
+
+        PeerState(String peerIP) {
+            this.peerIP = peerIP;
+        }
+    }
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final int maxInFlightPerPeer;
+    private final ChunkManifest manifest; // Null when the peers could not supply one
+    private int maxChunksPerRequest = 1;
+    private Metrics.Counter retryCounter; // Null when nobody counts retries
+    private int[] partialHolders; // Per chunk, how many partial peers hold it; null until one is known
+
+    // Guarded by "this"
+    private final ArrayDeque<Integer> pendingChunks = new ArrayDeque<>();
+    private final BitSet completedChunks;
+    private final Map<Integer, List<String>> chunkRequesters = new HashMap<>(); // In-flight chunk -> peers asked for it
+    private final Map<Integer, Long> chunkStartTimes = new HashMap<>();
+    private final Map<Integer, Set<String>> failedPeersByChunk = new HashMap<>(); // Peers that sent a bad copy
+    private final Map<String, PeerState> peers = new LinkedHashMap<>();
+    private int completedCount = 0;
+    private IOException failure;
+
+    public ChunkScheduler(List<String> peerIPs, long fileSize, int chunkSize, int maxInFlightPerPeer) {
+        this(peerIPs, fileSize, chunkSize, maxInFlightPerPeer, null);
+    }
+
+    public ChunkScheduler(List<String> peerIPs, long fileSize, int chunkSize, int maxInFlightPerPeer, ChunkManifest manifest) {
+        this.manifest = manifest;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.maxInFlightPerPeer = Math.max(1, maxInFlightPerPeer);
+        this.completedChunks = new BitSet(chunkCount);
+        for (int chunkID = 0; chunkID < chunkCount; chunkID++) {
+            pendingChunks.addLast(chunkID);
+        }
+        for (String peerIP : peerIPs) {
+            peers.put(peerIP, new PeerState(peerIP));
+        }
+    }
+
+    // Skips chunks that are already on disk, e.g. when resuming a download
+    public synchronized void markCompleted(BitSet chunks) {
+        for (int chunkID = chunks.nextSetBit(0); chunkID >= 0 && chunkID < chunkCount; chunkID = chunks.nextSetBit(chunkID + 1)) {
+            if (!completedChunks.get(chunkID)) {
+                completedChunks.set(chunkID);
+                completedCount++;
+            }
+        }
+        pendingChunks.removeIf(completedChunks::get);
+    }
+
+    // Starts handing out chunks at a random position, so downloaders that start together fetch different chunks
+    // first and have something to offer each other
+    public synchronized void startAtRandomChunk() {
+        if (pendingChunks.size() > 1) {
+            int offset = ThreadLocalRandom.current().nextInt(pendingChunks.size());
+            for (int i = 0; i < offset; i++) {
+                pendingChunks.addLast(pendingChunks.pollFirst());
+            }
+        }
+    }
+
+    // The chunks a peer that is still downloading can serve, or null once it has the whole file.
+    // Called again whenever fresher information arrives; a partial peer waits until it holds something we need.
+    public synchronized void updateAvailability(String peerIP, BitSet chunks) {
+        PeerState peer = peers.get(peerIP);
+        if (peer == null) {
+            return;
+        }
+        if (partialHolders == null && chunks != null) {
+            partialHolders = new int[chunkCount];
+        }
+        if (!peer.dropped) { // A dropped peer's chunks were uncounted when it was dropped
+            countHolders(peer.chunks, -1);
+            countHolders(chunks, 1);
+        }
+        peer.chunks = chunks != null ? (BitSet) chunks.clone() : null;
+        notifyAll();
+    }
+
+    private void countHolders(BitSet chunks, int delta) {
+        if (chunks == null || partialHolders == null) {
+            return;
+        }
+        for (int chunkID = chunks.nextSetBit(0); chunkID >= 0 && chunkID < chunkCount; chunkID = chunks.nextSetBit(chunkID + 1)) {
+            partialHolders[chunkID] += delta;
+        }
+    }
+
+    // Chunks handed to one request; every chunk still counts against the peer's in-flight window
+    public void setMaxChunksPerRequest(int maxChunksPerRequest) {
+        this.maxChunksPerRequest = Math.max(1, maxChunksPerRequest);
+    }
+
+    public void setRetryCounter(Metrics.Counter retryCounter) {
+        this.retryCounter = retryCounter;
+    }
+
+    // How many chunks of this size make a request worth batching
+    public static int batchSizeFor(int chunkSize) {
+        return Math.max(1, Math.min(WireProtocol.MAX_BATCH_CHUNKS, BATCH_TARGET_BYTES / chunkSize));
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public long expectedLength(int chunkID) {
+        return Math.min(chunkSize, fileSize - (long) chunkID * chunkSize);
+    }
+
+    // Blocks until every chunk has arrived or no usable peer is left; returns true when the file is complete
+    public boolean run(ChunkFetcher fetcher, ChunkListener listener) throws IOException, InterruptedException {
+        return runBatched((peerIP, chunkIDs) -> {
+            byte[][] chunks = new byte[chunkIDs.length][];
+            for (int i = 0; i < chunkIDs.length; i++) {
+                chunks[i] = fetcher.fetch(peerIP, chunkIDs[i]);
+            }
+            return chunks;
+        }, listener);
+    }
+
+    public boolean runBatched(BatchFetcher fetcher, ChunkListener listener) throws IOException, InterruptedException {
+        List<PeerState> peerStates;
+        synchronized (this) {
+            peerStates = new ArrayList<>(peers.values());
+        }
+        if (chunkCount == 0) {
+            return true;
+        }
+        if (peerStates.isEmpty()) {
+            return false;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(peerStates.size() * maxInFlightPerPeer);
+        for (PeerState peer : peerStates) {
+            for (int slot = 0; slot < maxInFlightPerPeer; slot++) {
+                executor.submit(() -> work(peer, fetcher, listener));
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+            return completedCount == chunkCount;
+        }
+    }
+
+    private void work(PeerState peer, BatchFetcher fetcher, ChunkListener listener) {
+        try {
+            int[] chunkIDs;
+            while ((chunkIDs = takeChunks(peer)) != null) {
+                long startTime = System.nanoTime();
+                byte[][] chunks = fetcher.fetch(peer.peerIP, chunkIDs);
+                long elapsedNanos = (System.nanoTime() - startTime) / chunkIDs.length; // Each chunk's share of the request
+
+                for (int i = 0; i < chunkIDs.length; i++) {
+                    int chunkID = chunkIDs[i];
+                    byte[] chunkData = chunks != null ? chunks[i] : null;
+                    boolean valid = chunkData != null && chunkData.length == expectedLength(chunkID)
+                            && (manifest == null || manifest.verify(chunkID, chunkData));
+                    if (valid && claim(chunkID)) {
+                        try {
+                            listener.onChunk(peer.peerIP, chunkID, chunkData);
+                        } catch (IOException e) {
+                            abort(e); // Local write failures end the download; another peer would not help
+                        }
+                    }
+                    finish(peer, chunkID, valid, elapsedNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The next chunk for this peer, followed by further pending chunks while the batch and the window allow.
+    // Retries and endgame copies always go one at a time.
+    private synchronized int[] takeChunks(PeerState peer) throws InterruptedException {
+        int chunkID = takeChunk(peer);
+        if (chunkID < 0) {
+            return null;
+        }
+        int[] batch = new int[maxChunksPerRequest];
+        batch[0] = chunkID;
+        int count = 1;
+        while (count < maxChunksPerRequest && peer.inFlight < window(peer) * maxChunksPerRequest && failedPeersByChunk.isEmpty()) {
+            Integer next = partialHolders == null ? pendingChunks.pollFirst() : pollPendingFor(peer);
+            if (next == null) {
+                break;
+            }
+            assign(peer, next);
+            batch[count++] = next;
+        }
+        return count == batch.length ? batch : Arrays.copyOf(batch, count);
+    }
+
+    private synchronized int takeChunk(PeerState peer) throws InterruptedException {
+        while (true) {
+            if (failure != null || completedCount == chunkCount || peer.dropped) {
+                return -1;
+            }
+            if (peer.inFlight < window(peer) * maxChunksPerRequest) {
+                Integer chunkID = failedPeersByChunk.isEmpty() && partialHolders == null ? pendingChunks.pollFirst() : pollPendingFor(peer);
+                if (chunkID == null) {
+                    chunkID = findStraggler(peer);
+                }
+                if (chunkID != null) {
+                    assign(peer, chunkID);
+                    return chunkID;
+                }
+            }
+            wait();
+        }
+    }
+
+    private void assign(PeerState peer, int chunkID) {
+        peer.inFlight++;
+        chunkRequesters.computeIfAbsent(chunkID, k -> new ArrayList<>()).add(peer.peerIP);
+        chunkStartTimes.putIfAbsent(chunkID, System.nanoTime());
+    }
+
+    // The rarest pending chunk this peer holds and has not already failed, unless every remaining peer has failed it.
+    // Among equally rare chunks the first in line wins.
+    private Integer pollPendingFor(PeerState peer) {
+        boolean anyWholePeer = hasWholePeer();
+        int rarestPossible = peer.chunks != null ? 1 : 0; // A partial peer counts itself among the holders
+        Integer best = null;
+        int bestHolders = Integer.MAX_VALUE;
+        for (Integer chunkID : pendingChunks) {
+            if (!holds(peer, chunkID, anyWholePeer)) {
+                continue;
+            }
+            Set<String> failedPeers = failedPeersByChunk.get(chunkID);
+            if (failedPeers != null && failedPeers.contains(peer.peerIP) && !allPeersFailed(failedPeers)) {
+                continue;
+            }
+            int holders = partialHolders != null ? partialHolders[chunkID] : 0;
+            if (holders < bestHolders) {
+                best = chunkID;
+                bestHolders = holders;
+                if (holders <= rarestPossible) {
+                    break;
+                }
+            }
+        }
+        if (best != null) {
+            pendingChunks.remove(best);
+        }
+        return best;
+    }
+
+    // A chunk no remaining peer is known to hold may be tried anywhere, so the download cannot stall on stale bitmaps
+    private boolean holds(PeerState peer, int chunkID, boolean anyWholePeer) {
+        return peer.chunks == null || peer.chunks.get(chunkID) || (!anyWholePeer && partialHolders[chunkID] == 0);
+    }
+
+    private boolean hasWholePeer() {
+        for (PeerState peer : peers.values()) {
+            if (!peer.dropped && peer.chunks == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean allPeersFailed(Set<String> failedPeers) {
+        for (PeerState peer : peers.values()) {
+            if (!peer.dropped && !failedPeers.contains(peer.peerIP)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The in-flight chunk that has waited longest and that this peer is not already fetching
+    private Integer findStraggler(PeerState peer) {
+        Integer straggler = null;
+        long oldestStart = Long.MAX_VALUE;
+        boolean anyWholePeer = hasWholePeer();
+        for (Map.Entry<Integer, List<String>> entry : chunkRequesters.entrySet()) {
+            List<String> requesters = entry.getValue();
+            Set<String> failedPeers = failedPeersByChunk.get(entry.getKey());
+            if (requesters.size() >= MAX_COPIES_IN_FLIGHT || requesters.contains(peer.peerIP) || !holds(peer, entry.getKey(), anyWholePeer)
+                    || (failedPeers != null && failedPeers.contains(peer.peerIP))) {
+                continue;
+            }
+            long startTime = chunkStartTimes.get(entry.getKey());
+            if (startTime < oldestStart) {
+                oldestStart = startTime;
+                straggler = entry.getKey();
+            }
+        }
+        return straggler;
+    }
+
+    // Peers slower than the fastest one get proportionally fewer requests in flight
+    private int window(PeerState peer) {
+        double fastest = 0;
+        for (PeerState other : peers.values()) {
+            if (!other.dropped) {
+                fastest = Math.max(fastest, other.bytesPerSecond);
+            }
+        }
+        if (fastest == 0 || peer.bytesPerSecond == 0) {
+            return maxInFlightPerPeer; // Not measured yet
+        }
+        return Math.max(1, (int) Math.ceil(maxInFlightPerPeer * peer.bytesPerSecond / fastest));
+    }
+
+    private synchronized boolean claim(int chunkID) {
+        if (completedChunks.get(chunkID)) {
+            return false; // Another peer delivered it first during the endgame
+        }
+        completedChunks.set(chunkID);
+        completedCount++;
+        failedPeersByChunk.remove(chunkID);
+        return true;
+    }
+
+    private synchronized void finish(PeerState peer, int chunkID, boolean valid, long elapsedNanos) {
+        peer.inFlight--;
+        List<String> requesters = chunkRequesters.get(chunkID);
+        if (requesters != null) {
+            requesters.remove(peer.peerIP);
+        }
+        if (completedChunks.get(chunkID) || requesters == null || requesters.isEmpty()) {
+            chunkRequesters.remove(chunkID);
+            chunkStartTimes.remove(chunkID);
+        }
+
+        if (valid) {
+            peer.failures = 0;
+            double sample = expectedLength(chunkID) * 1e9 / Math.max(1, elapsedNanos);
+            peer.bytesPerSecond = peer.bytesPerSecond == 0 ? sample
+                    : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * peer.bytesPerSecond;
+        } else {
+            peer.failures++;
+            if (!completedChunks.get(chunkID)) {
+                failedPeersByChunk.computeIfAbsent(chunkID, k -> new HashSet<>()).add(peer.peerIP);
+            }
+            if (peer.failures >= MAX_PEER_FAILURES && !peer.dropped) {
+                peer.dropped = true;
+                countHolders(peer.chunks, -1);
+            }
+            if (!completedChunks.get(chunkID) && !chunkRequesters.containsKey(chunkID)) {
+                pendingChunks.addFirst(chunkID); // Retry soon, on whichever peer asks next
+                if (retryCounter != null) {
+                    retryCounter.increment();
+                }
+            }
+            if (allPeersDropped() && completedCount < chunkCount) {
+                failure = new IOException("No peer could deliver the remaining " + (chunkCount - completedCount) + " chunks");
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized void abort(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        notifyAll();
+    }
+
+    private boolean allPeersDropped() {
+        for (PeerState peer : peers.values()) {
+            if (!peer.dropped) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
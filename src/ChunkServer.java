@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ChunkServer {
+    private static final int DEFAULT_MAX_CONNECTIONS = 64; // Connections served at the same time
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_PEER = 8; // Connections served at the same time for one peer
+    private static final int MAX_PENDING_CONNECTIONS = 1024; // Accepted connections waiting for a worker
+
+    public interface ConnectionHandler {
+        void handle(SocketChannel channel) throws IOException;
+    }
+
+    private final int port;
+    private final ConnectionHandler handler;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    // Guarded by "this"
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerPeer = DEFAULT_MAX_CONNECTIONS_PER_PEER;
+    private int activeConnections = 0;
+    private int pendingConnections = 0;
+    private final Map<String, Integer> activeByPeer = new HashMap<>();
+    private final Map<String, ArrayDeque<SocketChannel>> pendingByPeer = new HashMap<>();
+    private final Set<SocketChannel> activeChannels = new HashSet<>();
+    private final ArrayDeque<String> peerRotation = new ArrayDeque<>(); // Peers with pending connections, in round-robin order
+
+    public ChunkServer(int port, ConnectionHandler handler) {
+        this.port = port;
+        this.handler = handler;
+    }
+
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            this.serverChannel = serverChannel;
+            while (running) {
+                try {
+                    SocketChannel clientChannel = serverChannel.accept();
+                    enqueue(clientChannel);
+                } catch (ClosedChannelException e) {
+                    break; // stop() closed the listening channel
+                } catch (IOException e) {
+                    // A failed accept (e.g. out of file handles) should not take the server down
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            synchronized (this) {
+                running = false;
+                workers.shutdown();
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        List<SocketChannel> openChannels;
+        synchronized (this) {
+            openChannels = new ArrayList<>(activeChannels);
+            for (ArrayDeque<SocketChannel> queue : pendingByPeer.values()) {
+                openChannels.addAll(queue);
+            }
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            // Persistent sessions would otherwise keep serving after the node stops
+            for (SocketChannel channel : openChannels) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        dispatch();
+    }
+
+    public synchronized void setMaxConnectionsPerPeer(int maxConnectionsPerPeer) {
+        this.maxConnectionsPerPeer = Math.max(1, maxConnectionsPerPeer);
+        dispatch();
+    }
+
+    public synchronized int getActiveConnections() {
+        return activeConnections;
+    }
+
+    private synchronized void enqueue(SocketChannel clientChannel) throws IOException {
+        if (pendingConnections >= MAX_PENDING_CONNECTIONS) {
+            clientChannel.close(); // Shed load instead of queueing without bound
+            return;
+        }
+        String peer = ((InetSocketAddress) clientChannel.getRemoteAddress()).getAddress().getHostAddress();
+        ArrayDeque<SocketChannel> queue = pendingByPeer.computeIfAbsent(peer, k -> new ArrayDeque<>());
+        if (queue.isEmpty()) {
+            peerRotation.addLast(peer);
+        }
+        queue.addLast(clientChannel);
+        pendingConnections++;
+        dispatch();
+    }
+
+    // Hands pending connections to workers, taking one peer at a time so a busy peer cannot starve the others
+    private synchronized void dispatch() {
+        if (workers.isShutdown()) {
+            return;
+        }
+        int skippedPeers = 0; // Peers visited since the last hand-off that were already at their limit
+        while (activeConnections < maxConnections && skippedPeers < peerRotation.size()) {
+            String peer = peerRotation.pollFirst();
+            ArrayDeque<SocketChannel> queue = pendingByPeer.get(peer);
+            int activeForPeer = activeByPeer.getOrDefault(peer, 0);
+
+            if (activeForPeer < maxConnectionsPerPeer) {
+                SocketChannel clientChannel = queue.pollFirst();
+                pendingConnections--;
+                activeConnections++;
+                activeByPeer.put(peer, activeForPeer + 1);
+                activeChannels.add(clientChannel);
+                workers.execute(() -> serve(peer, clientChannel));
+                skippedPeers = 0;
+            } else {
+                skippedPeers++;
+            }
+
+            if (queue.isEmpty()) {
+                pendingByPeer.remove(peer);
+            } else {
+                peerRotation.addLast(peer);
+            }
+        }
+    }
+
+    private void serve(String peer, SocketChannel clientChannel) {
+        try (SocketChannel channel = clientChannel) {
+            handler.handle(channel);
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            release(peer, clientChannel);
+        }
+    }
+
+    private synchronized void release(String peer, SocketChannel clientChannel) {
+        activeConnections--;
+        activeChannels.remove(clientChannel);
+        int activeForPeer = activeByPeer.getOrDefault(peer, 1) - 1;
+        if (activeForPeer <= 0) {
+            activeByPeer.remove(peer);
+        } else {
+            activeByPeer.put(peer, activeForPeer);
+        }
+        dispatch();
+    }
+}
@@ -0,0 +1,37 @@
+// Picks the chunk size of a download. Sizes are powers of two between MIN_CHUNK_SIZE and MAX_CHUNK_SIZE,
+// so a shared file is only ever hashed at a handful of sizes. The size travels in the manifest and in every
+// chunk request, so both sides always agree on where a chunk starts and ends.
+public class ChunkSizing {
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024; // The only size nodes before protocol 3 know
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final int AUTO = 0; // Setting that lets choose() decide per download
+    private static final int MIN_CHUNKS_PER_FILE = 16; // Enough chunks to spread a file over several peers
+    private static final int MAX_CHUNKS_PER_FILE = 4096; // Bounds the manifest size and the request count
+    private static final double TARGET_CHUNK_SECONDS = 0.25; // Long enough that per-request overhead does not matter
+
+    public static boolean isValid(int chunkSize) {
+        return chunkSize >= MIN_CHUNK_SIZE && chunkSize <= MAX_CHUNK_SIZE && Integer.bitCount(chunkSize) == 1;
+    }
+
+    // A chunk should take about TARGET_CHUNK_SECONDS at the observed speed of one request, without leaving
+    // a file so few chunks that peers cannot share it, or so many that requests dominate.
+    // With no speed measured yet, the default size is the starting point.
+    public static int choose(long fileSize, double bytesPerSecond) {
+        double bySpeed = bytesPerSecond > 0 ? bytesPerSecond * TARGET_CHUNK_SECONDS : DEFAULT_CHUNK_SIZE;
+        long lowest = (fileSize + MAX_CHUNKS_PER_FILE - 1) / MAX_CHUNKS_PER_FILE;
+        long highest = fileSize / MIN_CHUNKS_PER_FILE;
+        long target = Math.max(lowest, Math.min((long) bySpeed, highest));
+
+        long chunkSize = Long.highestOneBit(Math.max(1, target));
+        if (chunkSize < lowest) {
+            chunkSize <<= 1;
+        }
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+    }
+
+    // Smallest size the file can be cut in; DeltaSync reuses whole chunks, so smaller ones reuse more of an older copy
+    public static int finest(long fileSize) {
+        return choose(fileSize, MIN_CHUNK_SIZE / TARGET_CHUNK_SECONDS);
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Reuses an older copy of a file when downloading its new version, the way zsync does: the node that has the
+// new version publishes a rolling checksum of every chunk (WireProtocol.OP_CHECKSUMS, protocol 8), and the
+// downloader slides a window over its old copy looking for them. A window whose checksum matches and whose
+// SHA-256 matches the manifest is copied into the download, wherever it sits in the old file, so data that
+// moved because bytes were inserted or removed earlier on is found too. Only the chunks not found are fetched.
+// The checksum is rsync's: two 16-bit sums that can be rolled forward one byte at a time.
+public class DeltaSync {
+    private static final int FILTER_BITS = 20; // Bit per checksum hash; most windows are ruled out without a map lookup
+    private static final int MIN_READ_SIZE = 1024 * 1024;
+
+    // Rolling checksum of every chunk of a file
+    public static int[] chunkChecksums(Path path, int chunkSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int[] checksums = new int[(int) ((fileSize + chunkSize - 1) / chunkSize)];
+            byte[] chunk = new byte[chunkSize];
+            for (int chunkID = 0; chunkID < checksums.length; chunkID++) {
+                int chunkLength = (int) Math.min(chunkSize, fileSize - (long) chunkID * chunkSize);
+                readFully(channel, chunk, chunkLength, (long) chunkID * chunkSize);
+                checksums[chunkID] = checksum(chunk, 0, chunkLength);
+            }
+            return checksums;
+        }
+    }
+
+    // Of the buffer's remaining bytes, which it consumes
+    public static int checksum(ByteBuffer data) {
+        int a = 0;
+        int b = 0;
+        while (data.hasRemaining()) {
+            a += data.get() & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    public static int checksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    // Copies every chunk of the new version that the old copy holds somewhere into the download and returns them.
+    // Chunks in skip, e.g. resumed from an earlier run, are neither looked for nor written.
+    public static BitSet copyMatchingChunks(Path oldFile, ChunkManifest manifest, int[] checksums, ChunkFileWriter fileWriter,
+                                            BitSet skip) throws IOException {
+        int chunkSize = manifest.getChunkSize();
+        int chunkCount = manifest.getChunkCount();
+        BitSet found = new BitSet(chunkCount);
+        try (FileChannel channel = FileChannel.open(oldFile, StandardOpenOption.READ)) {
+            long oldSize = channel.size();
+
+            // A last chunk shorter than the others cannot be rolled along with them; it is only looked for
+            // where it was and at the end of the old copy
+            int lastChunkLength = chunkCount > 0 ? fileWriter.chunkLength(chunkCount - 1) : 0;
+            int fullChunks = lastChunkLength == chunkSize ? chunkCount : chunkCount - 1;
+            if (fullChunks < chunkCount && !skip.get(chunkCount - 1)) {
+                byte[] lastChunk = new byte[lastChunkLength];
+                for (long position : new long[]{(long) (chunkCount - 1) * chunkSize, oldSize - lastChunkLength}) {
+                    if (position >= 0 && position + lastChunkLength <= oldSize) {
+                        readFully(channel, lastChunk, lastChunkLength, position);
+                        if (manifest.verify(chunkCount - 1, lastChunk)) {
+                            fileWriter.writeChunk(chunkCount - 1, lastChunk);
+                            found.set(chunkCount - 1);
+                            break;
+                        }
+                    }
+                }
+            }
+
+            Map<Integer, int[]> chunksByChecksum = new HashMap<>();
+            long[] filter = new long[1 << (FILTER_BITS - 6)];
+            int wanted = 0;
+            for (int chunkID = 0; chunkID < fullChunks; chunkID++) {
+                if (!skip.get(chunkID)) {
+                    int[] chunkIDs = chunksByChecksum.get(checksums[chunkID]);
+                    chunkIDs = chunkIDs == null ? new int[1] : Arrays.copyOf(chunkIDs, chunkIDs.length + 1);
+                    chunkIDs[chunkIDs.length - 1] = chunkID;
+                    chunksByChecksum.put(checksums[chunkID], chunkIDs);
+                    int bit = filterBit(checksums[chunkID]);
+                    filter[bit >>> 6] |= 1L << bit;
+                    wanted++;
+                }
+            }
+            if (wanted > 0 && oldSize >= chunkSize) {
+                scan(channel, manifest, chunksByChecksum, filter, wanted, fileWriter, found);
+            }
+        }
+        return found;
+    }
+
+    // Slides a chunk-sized window over the old copy; after a match it jumps past the matched data
+    private static void scan(FileChannel channel, ChunkManifest manifest, Map<Integer, int[]> chunksByChecksum, long[] filter,
+                             int wanted, ChunkFileWriter fileWriter, BitSet found) throws IOException {
+        int chunkSize = manifest.getChunkSize();
+        byte[] buffer = new byte[chunkSize + Math.max(chunkSize, MIN_READ_SIZE)];
+        ByteBuffer reader = ByteBuffer.wrap(buffer);
+        MessageDigest digest = newDigest();
+        long position = 0; // Of the buffer's start in the old copy
+        int filled = 0;
+        int start = 0; // Of the window in the buffer
+        boolean summed = false;
+        int a = 0;
+        int b = 0;
+        while (wanted > 0) {
+            if (filled - start <= chunkSize) {
+                // Keep the window and read on behind it; the byte after the window is needed to roll
+                System.arraycopy(buffer, start, buffer, 0, filled - start);
+                position += start;
+                filled -= start;
+                start = 0;
+                reader.clear().position(filled);
+                while (reader.hasRemaining()) {
+                    if (channel.read(reader, position + reader.position()) < 0) {
+                        break;
+                    }
+                }
+                filled = reader.position();
+                if (filled < chunkSize) {
+                    break;
+                }
+            }
+            if (!summed) {
+                int checksum = checksum(buffer, start, chunkSize);
+                a = checksum & 0xFFFF;
+                b = checksum >>> 16;
+                summed = true;
+            }
+            int checksum = a | (b << 16);
+            int bit = filterBit(checksum);
+            int[] chunkIDs = (filter[bit >>> 6] & (1L << bit)) != 0 ? chunksByChecksum.get(checksum) : null;
+            if (chunkIDs != null) {
+                digest.reset();
+                digest.update(buffer, start, chunkSize);
+                byte[] hash = digest.digest();
+                byte[] chunk = null;
+                for (int chunkID : chunkIDs) {
+                    if (MessageDigest.isEqual(hash, manifest.getChunkHash(chunkID))) {
+                        if (chunk == null) {
+                            chunk = Arrays.copyOfRange(buffer, start, start + chunkSize);
+                        }
+                        if (!found.get(chunkID)) {
+                            fileWriter.writeChunk(chunkID, chunk); // Every chunk with this content, e.g. runs of zeros
+                            found.set(chunkID);
+                            wanted--;
+                        }
+                    }
+                }
+                if (chunk != null) {
+                    start += chunkSize;
+                    summed = false;
+                    continue;
+                }
+            }
+            if (filled - start == chunkSize) {
+                break; // The window is at the end of the file
+            }
+            int out = buffer[start] & 0xFF;
+            int in = buffer[start + chunkSize] & 0xFF;
+            a = (a - out + in) & 0xFFFF;
+            b = (b - chunkSize * out + a) & 0xFFFF;
+            start++;
+        }
+    }
+
+    private static int filterBit(int checksum) {
+        return (checksum * 0x9E3779B9) >>> (32 - FILTER_BITS);
+    }
+
+    private static void readFully(FileChannel channel, byte[] data, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File shrank while reading it");
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java runtime", e);
+        }
+    }
+}
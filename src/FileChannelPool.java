@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps read channels to shared files open between chunk requests
+public class FileChannelPool {
+    private static final int DEFAULT_MAX_OPEN_FILES = 64;
+
+    public static class Lease implements AutoCloseable {
+        private final FileChannelPool pool;
+        private final Entry entry;
+
+        private Lease(FileChannelPool pool, Entry entry) {
+            this.pool = pool;
+            this.entry = entry;
+        }
+
+        public FileChannel channel() {
+            return entry.channel;
+        }
+
+        // Of the file when the channel was opened
+        public long lastModified() {
+            return entry.lastModified;
+        }
+
+        @Override
+        public void close() {
+            pool.release(entry);
+        }
+    }
+
+    private static class Entry {
+        final FileChannel channel;
+        final long lastModified; // Detects a file replaced under the same path
+        int leases = 0;
+        boolean evicted = false;
+
+        Entry(FileChannel channel, long lastModified) {
+            this.channel = channel;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final int maxOpenFiles;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order for LRU
+
+    public FileChannelPool() {
+        this(DEFAULT_MAX_OPEN_FILES);
+    }
+
+    public FileChannelPool(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    // The returned lease must be closed; the channel stays open for the next request
+    public Lease acquire(Path path) throws IOException {
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.lastModified != lastModified) {
+                evict(path, entry);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(FileChannel.open(path, StandardOpenOption.READ), lastModified);
+                entries.put(path, entry);
+                trim();
+            }
+            entry.leases++;
+            return new Lease(this, entry);
+        }
+    }
+
+    public synchronized void closeAll() {
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            entry.evicted = true;
+            closeIfUnused(entry);
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.leases--;
+        closeIfUnused(entry);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxOpenFiles && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            entry.evicted = true;
+            closeIfUnused(entry);
+        }
+    }
+
+    private void evict(Path path, Entry entry) {
+        entries.remove(path);
+        entry.evicted = true;
+        closeIfUnused(entry);
+    }
+
+    // Channels still in use by a transfer are closed by the last lease instead
+    private void closeIfUnused(Entry entry) {
+        if (entry.evicted && entry.leases == 0) {
+            try {
+                entry.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
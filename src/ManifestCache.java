@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Chunk manifests of shared files, and the DeltaSync checksums of their chunks, computed once per file version
+// and chunk size and shared by concurrent requests. Large files are hashed as soon as the catalog sees them,
+// so the first downloader does not wait for a whole file to be read.
+public class ManifestCache {
+    private static final int HASHING_THREADS = 2; // Files hashed at once; each file is also hashed in parallel
+    private static final int MAX_CACHED_FILES = 256; // A manifest holds at most a few thousand hashes per chunk size
+    private static final long PREPARE_MIN_SIZE = 64L * 1024 * 1024; // Smaller files hash well within a request's timeout
+
+    private interface Hashing<T> {
+        T compute(Path path, int chunkSize) throws IOException;
+    }
+
+    private static class Cached<T> {
+        final long size;
+        final long lastModified;
+        final CompletableFuture<T> result;
+
+        Cached(long size, long lastModified, CompletableFuture<T> result) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.result = result;
+        }
+    }
+
+    // Path -> chunk size -> result; the least recently asked for files are dropped first
+    private static class Cache<T> extends LinkedHashMap<Path, Map<Integer, Cached<T>>> {
+        private static final long serialVersionUID = 1L;
+
+        Cache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Map<Integer, Cached<T>>> eldest) {
+            return size() > MAX_CACHED_FILES;
+        }
+    }
+
+    private final Cache<ChunkManifest> manifests = new Cache<>(); // Guarded by itself
+    private final Cache<int[]> checksums = new Cache<>(); // Guarded by itself
+    private final ExecutorService hashers = Executors.newFixedThreadPool(HASHING_THREADS, runnable -> {
+        Thread hasher = new Thread(runnable, "ManifestHasher");
+        hasher.setDaemon(true);
+        return hasher;
+    });
+
+    public ChunkManifest get(SharedFileCatalog.SharedFile sharedFile, int chunkSize) throws IOException {
+        return await(request(sharedFile, chunkSize), sharedFile);
+    }
+
+    // A downloader with an older copy asks for the manifest first, at the size delta downloads use unless
+    // configured otherwise; that manifest is hashed with the checksums, so they are ready when asked for.
+    // At other sizes they are only read when asked for, so other downloads do not pay for them.
+    public int[] getChecksums(SharedFileCatalog.SharedFile sharedFile, int chunkSize) throws IOException {
+        if (chunkSize == ChunkSizing.finest(sharedFile.size)) {
+            int[] result = get(sharedFile, chunkSize).getChecksums();
+            if (result != null) {
+                return result;
+            }
+        }
+        return await(request(checksums, sharedFile, chunkSize, DeltaSync::chunkChecksums), sharedFile);
+    }
+
+    private static <T> T await(CompletableFuture<T> result, SharedFileCatalog.SharedFile sharedFile) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + sharedFile.name, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    // Starts hashing in the background if this version of the file has no manifest yet
+    public CompletableFuture<ChunkManifest> request(SharedFileCatalog.SharedFile sharedFile, int chunkSize) {
+        boolean withChecksums = chunkSize == ChunkSizing.finest(sharedFile.size);
+        return request(manifests, sharedFile, chunkSize, (path, size) -> ChunkManifest.compute(path, size, withChecksums));
+    }
+
+    // Called when a file is added or changed: large files get a manifest at the size a downloader that has
+    // not measured its peers yet picks. Other sizes are still hashed when asked for.
+    public void prepare(SharedFileCatalog.SharedFile sharedFile) {
+        if (sharedFile.size >= PREPARE_MIN_SIZE) {
+            request(sharedFile, ChunkSizing.choose(sharedFile.size, 0));
+        }
+    }
+
+    private <T> CompletableFuture<T> request(Cache<T> cache, SharedFileCatalog.SharedFile sharedFile, int chunkSize, Hashing<T> hashing) {
+        Path path = sharedFile.path;
+        synchronized (cache) {
+            Map<Integer, Cached<T>> bySize = cache.computeIfAbsent(path, k -> new HashMap<>());
+            Cached<T> existing = bySize.get(chunkSize);
+            if (existing != null && existing.size == sharedFile.size && existing.lastModified == sharedFile.lastModified
+                    && !existing.result.isCompletedExceptionally()) {
+                return existing.result;
+            }
+            CompletableFuture<T> result = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return hashing.compute(path, chunkSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, hashers);
+            bySize.put(chunkSize, new Cached<>(sharedFile.size, sharedFile.lastModified, result));
+            return result;
+        }
+    }
+
+    public void invalidate(Path path) {
+        synchronized (manifests) {
+            manifests.remove(path);
+        }
+        synchronized (checksums) {
+            checksums.remove(path);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+
+// Counters, gauges and histograms of one node, readable as Prometheus text and as a JMX MBean.
+// Updates are LongAdder increments: striped per thread, no lock and no shared cache line on the chunk path,
+// so they can stay on in production. Reading sums the stripes, which only a scrape pays for.
+// Gauges are read from their source on each scrape and cost nothing in between.
+public class Metrics implements DynamicMBean {
+
+    // Receives every sample of a scrape: the series name, its labels ("" or {peer="..."}) and the value
+    private interface SampleSink {
+        void sample(String name, String labels, double value);
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+        final String type;
+
+        Metric(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        abstract void collect(SampleSink sink);
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help, "counter");
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        void collect(SampleSink sink) {
+            sink.sample(name, "", value.sum());
+        }
+    }
+
+    private static class Gauge extends Metric {
+        private final LongSupplier source;
+
+        Gauge(String name, String help, LongSupplier source) {
+            super(name, help, "gauge");
+            this.source = source;
+        }
+
+        @Override
+        void collect(SampleSink sink) {
+            sink.sample(name, "", source.getAsLong());
+        }
+    }
+
+    // Fixed buckets of raw values, e.g. nanoseconds; the scale turns them into the exported unit, e.g. seconds.
+    // Observing is a short scan of the bounds and two adder increments.
+    public static class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets; // One per bound plus the overflow bucket
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        void collect(SampleSink sink, String name, String label, double scale) {
+            String labelPrefix = label.isEmpty() ? "{" : "{" + label + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                sink.sample(name + "_bucket", labelPrefix + "le=\"" + formatValue(bounds[i] * scale) + "\"}", cumulative);
+            }
+            cumulative += buckets[bounds.length].sum();
+            sink.sample(name + "_bucket", labelPrefix + "le=\"+Inf\"}", cumulative);
+            String labels = label.isEmpty() ? "" : "{" + label + "}";
+            sink.sample(name + "_sum", labels, sum.sum() * scale);
+            sink.sample(name + "_count", labels, cumulative);
+        }
+    }
+
+    // A histogram per value of one label, e.g. per peer; children are created on first use
+    public static class HistogramFamily extends Metric {
+        private final String labelName;
+        private final long[] bounds;
+        private final double scale;
+        private final ConcurrentHashMap<String, Histogram> children = new ConcurrentHashMap<>();
+
+        HistogramFamily(String name, String help, String labelName, long[] bounds, double scale) {
+            super(name, help, "histogram");
+            this.labelName = labelName;
+            this.bounds = bounds;
+            this.scale = scale;
+        }
+
+        public Histogram labels(String value) {
+            Histogram histogram = children.get(value);
+            return histogram != null ? histogram : children.computeIfAbsent(value, k -> new Histogram(bounds));
+        }
+
+        public void remove(String value) {
+            children.remove(value);
+        }
+
+        @Override
+        void collect(SampleSink sink) {
+            for (Map.Entry<String, Histogram> child : children.entrySet()) {
+                String label = labelName + "=\"" + escape(child.getKey()) + "\"";
+                child.getValue().collect(sink, name, label, scale);
+            }
+        }
+    }
+
+    private static class UnlabeledHistogram extends Metric {
+        private final Histogram histogram;
+        private final double scale;
+
+        UnlabeledHistogram(String name, String help, Histogram histogram, double scale) {
+            super(name, help, "histogram");
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+
+        @Override
+        void collect(SampleSink sink) {
+            histogram.collect(sink, name, "", scale);
+        }
+    }
+
+    // Bounds for latencies recorded in nanoseconds and exported in seconds
+    public static final double NANOS_TO_SECONDS = 1e-9;
+    public static final long[] NETWORK_LATENCY_BOUNDS = nanos(0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10);
+    public static final long[] LOOKUP_LATENCY_BOUNDS = nanos(1e-7, 2.5e-7, 5e-7, 1e-6, 2.5e-6, 5e-6, 1e-5, 2.5e-5, 1e-4, 1e-3);
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    public void gauge(String name, String help, LongSupplier source) {
+        register(new Gauge(name, help, source));
+    }
+
+    public Histogram histogram(String name, String help, long[] bounds, double scale) {
+        Histogram histogram = new Histogram(bounds);
+        register(new UnlabeledHistogram(name, help, histogram, scale));
+        return histogram;
+    }
+
+    public HistogramFamily histogramFamily(String name, String help, String labelName, long[] bounds, double scale) {
+        return register(new HistogramFamily(name, help, labelName, bounds, scale));
+    }
+
+    private <T extends Metric> T register(T metric) {
+        for (Metric existing : metrics) {
+            if (existing.name.equals(metric.name)) {
+                throw new IllegalArgumentException("Metric " + metric.name + " is already registered");
+            }
+        }
+        metrics.add(metric);
+        return metric;
+    }
+
+    // The Prometheus text exposition format, version 0.0.4
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            metric.collect((name, labels, value) ->
+                    out.append(name).append(labels).append(' ').append(formatValue(value)).append('\n'));
+        }
+        return out.toString();
+    }
+
+    // Every series of a scrape by its Prometheus name and labels, e.g. p2p_chunk_request_seconds_count{peer="10.0.0.2"}
+    public Map<String, Double> snapshot() {
+        Map<String, Double> samples = new LinkedHashMap<>();
+        for (Metric metric : metrics) {
+            metric.collect((name, labels, value) -> samples.put(name + labels, value));
+        }
+        return samples;
+    }
+
+    // JMX: each series is a read-only attribute of the same name. Per-peer series come and go,
+    // so the attribute list is built from a fresh snapshot each time it is asked for.
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Double value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Double> samples = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Double value = samples.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList(); // Nothing is writable
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("No operations: " + actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String series : snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(series, Double.class.getName(), series, true, false, false));
+        }
+        return new MBeanInfo(Metrics.class.getName(), "P2P node metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static long[] nanos(double... seconds) {
+        long[] bounds = new long[seconds.length];
+        for (int i = 0; i < seconds.length; i++) {
+            bounds[i] = Math.round(seconds[i] * 1e9);
+        }
+        return bounds;
+    }
+
+    private static String formatValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value); // E.g. 5.0E-4, which Prometheus parses
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+// What the main window shows: the active peers and the files they offer that are not here already.
+// Each peer change from the registry is diffed against the last state applied for that peer, so only
+// the rows that changed are touched. Must only be used on the event thread.
+public class NetworkViewModel {
+    private final SortedListModel peersModel = new SortedListModel();
+    private final SortedListModel filesModel = new SortedListModel();
+    private final Map<String, PeerRegistry.PeerInfo> appliedPeers = new HashMap<>();
+    private final Map<String, Integer> holderCounts = new HashMap<>(); // File -> active peers offering it
+    private final Predicate<String> isLocalFile;
+
+    public NetworkViewModel(Predicate<String> isLocalFile) {
+        this.isLocalFile = isLocalFile;
+    }
+
+    public SortedListModel getPeersModel() {
+        return peersModel;
+    }
+
+    public SortedListModel getFilesModel() {
+        return filesModel;
+    }
+
+    public void apply(PeerRegistry.PeerInfo peer) {
+        PeerRegistry.PeerInfo previous = appliedPeers.get(peer.ip);
+        if (previous != null && previous.version >= peer.version) {
+            return; // Already showing this or a newer state
+        }
+        appliedPeers.put(peer.ip, peer);
+
+        if (peer.active) {
+            peersModel.add(peer.ip);
+        } else {
+            peersModel.remove(peer.ip);
+        }
+
+        // A change that directly follows the state shown only needs its own delta; otherwise diff the whole listings
+        boolean wasActive = previous != null && previous.active;
+        Collection<String> gained;
+        Collection<String> lost;
+        if (wasActive == peer.active && (previous != null ? previous.version : 0) == peer.previousVersion) {
+            gained = peer.active ? peer.added : Set.of();
+            lost = peer.active ? peer.removed : Set.of();
+        } else {
+            Set<String> oldFiles = wasActive ? previous.files : Set.of();
+            Set<String> newFiles = peer.active ? peer.files : Set.of();
+            gained = new ArrayList<>();
+            lost = new ArrayList<>();
+            for (String file : newFiles) {
+                if (!oldFiles.contains(file)) {
+                    gained.add(file);
+                }
+            }
+            for (String file : oldFiles) {
+                if (!newFiles.contains(file)) {
+                    lost.add(file);
+                }
+            }
+        }
+
+        List<String> shown = new ArrayList<>();
+        List<String> hidden = new ArrayList<>();
+        for (String file : gained) {
+            if (holderCounts.merge(file, 1, Integer::sum) == 1 && !isLocalFile.test(file)) {
+                shown.add(file);
+            }
+        }
+        for (String file : lost) {
+            if (holderCounts.merge(file, -1, Integer::sum) == 0) {
+                holderCounts.remove(file);
+                hidden.add(file);
+            }
+        }
+        filesModel.apply(shown, hidden);
+    }
+
+    // Brings the view in line with a registry snapshot, e.g. after it was cleared
+    public void reload(PeerRegistry.Snapshot snapshot) {
+        for (PeerRegistry.PeerInfo peer : snapshot.peers.values()) {
+            apply(peer);
+        }
+    }
+
+    // Hides a file that is now here, e.g. after its download completed
+    public void hideFile(String file) {
+        filesModel.remove(file);
+    }
+
+    public void clear() {
+        appliedPeers.clear();
+        holderCounts.clear();
+        peersModel.clear();
+        filesModel.clear();
+    }
+}
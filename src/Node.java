@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// One node of the network without any user interface: it shares a folder, finds peers and downloads from them.
+// The GUI, the headless daemon and the benchmarks all drive a node through this class.
+public class Node implements AutoCloseable {
+
+    // Everything needed to start a node; load() reads it from a properties file
+    public static class Config {
+        public String sharedFolder;
+        public String sharedSecret;
+        public Set<String> sharedSubfolders = new LinkedHashSet<>(); // Absolute paths of subfolders to advertise
+        public int maxConcurrentDownloads = TransferManager.DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+        public int chunkSize = ChunkSizing.AUTO;
+        public int maxConnections = 64;
+        public int maxConnectionsPerPeer = 8;
+        public long uploadLimit = TokenBucket.UNLIMITED; // Bytes per second, 0 for unlimited
+        public long uploadLimitPerPeer = TokenBucket.UNLIMITED;
+        public long downloadLimit = TokenBucket.UNLIMITED;
+        public long downloadLimitPerPeer = TokenBucket.UNLIMITED;
+        public long downloadLimitPerTransfer = TokenBucket.UNLIMITED;
+        public long chunkCacheSize = ChunkCache.DEFAULT_CAPACITY; // Bytes of popular chunks kept in memory, 0 for none
+        public boolean compression = true; // Deflate chunks of files that shrink, with peers that support it
+        public int metricsPort = 0; // Local port of the Prometheus endpoint, 0 for none
+        public boolean jmx = true; // Register the metrics as an MBean
+
+        public Config(String sharedFolder, String sharedSecret) {
+            this.sharedFolder = sharedFolder;
+            this.sharedSecret = sharedSecret;
+        }
+
+        // Keys: sharedFolder, sharedSecret, sharedSubfolders (comma separated, relative to the shared folder, or "*"),
+        // maxConcurrentDownloads, chunkSize ("auto" or bytes), maxConnections, maxConnectionsPerPeer,
+        // uploadLimit, uploadLimitPerPeer, downloadLimit, downloadLimitPerPeer, downloadLimitPerTransfer (bytes per second, 0 for unlimited),
+        // chunkCacheSize (bytes, 0 for none), compression (true or false),
+        // metricsPort (0 for none), jmx (true or false)
+        public static Config load(Path file) throws IOException {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+            String sharedFolder = properties.getProperty("sharedFolder");
+            String sharedSecret = properties.getProperty("sharedSecret");
+            if (sharedFolder == null || sharedSecret == null) {
+                throw new IOException(file + " must set sharedFolder and sharedSecret");
+            }
+            Path sharedFolderPath = Paths.get(sharedFolder.trim());
+            if (!Files.isDirectory(sharedFolderPath)) {
+                throw new IOException("Shared folder " + sharedFolderPath + " does not exist");
+            }
+
+            Config config = new Config(sharedFolderPath.toString(), sharedSecret.trim());
+            String subfolders = properties.getProperty("sharedSubfolders", "").trim();
+            if (subfolders.equals("*")) {
+                try (Stream<Path> children = Files.list(sharedFolderPath)) {
+                    children.filter(Files::isDirectory).forEach(path -> config.sharedSubfolders.add(path.toAbsolutePath().toString()));
+                }
+            } else if (!subfolders.isEmpty()) {
+                for (String subfolder : subfolders.split(",")) {
+                    config.sharedSubfolders.add(sharedFolderPath.resolve(subfolder.trim()).toAbsolutePath().toString());
+                }
+            }
+            config.maxConcurrentDownloads = Integer.parseInt(properties.getProperty("maxConcurrentDownloads",
+                    String.valueOf(config.maxConcurrentDownloads)).trim());
+            String chunkSize = properties.getProperty("chunkSize", "auto").trim();
+            config.chunkSize = chunkSize.equalsIgnoreCase("auto") ? ChunkSizing.AUTO : Integer.parseInt(chunkSize);
+            config.maxConnections = Integer.parseInt(properties.getProperty("maxConnections",
+                    String.valueOf(config.maxConnections)).trim());
+            config.maxConnectionsPerPeer = Integer.parseInt(properties.getProperty("maxConnectionsPerPeer",
+                    String.valueOf(config.maxConnectionsPerPeer)).trim());
+            config.uploadLimit = Long.parseLong(properties.getProperty("uploadLimit", "0").trim());
+            config.uploadLimitPerPeer = Long.parseLong(properties.getProperty("uploadLimitPerPeer", "0").trim());
+            config.downloadLimit = Long.parseLong(properties.getProperty("downloadLimit", "0").trim());
+            config.downloadLimitPerPeer = Long.parseLong(properties.getProperty("downloadLimitPerPeer", "0").trim());
+            config.downloadLimitPerTransfer = Long.parseLong(properties.getProperty("downloadLimitPerTransfer", "0").trim());
+            config.chunkCacheSize = Long.parseLong(properties.getProperty("chunkCacheSize",
+                    String.valueOf(config.chunkCacheSize)).trim());
+            config.compression = Boolean.parseBoolean(properties.getProperty("compression", "true").trim());
+            config.metricsPort = Integer.parseInt(properties.getProperty("metricsPort", "0").trim());
+            config.jmx = Boolean.parseBoolean(properties.getProperty("jmx", "true").trim());
+            return config;
+        }
+    }
+
+    private final Config config;
+    private final NodeThread nodeThread;
+    private final TransferManager transferManager;
+    private MetricsServer metricsServer;
+    private ObjectName metricsMBeanName;
+    private boolean started = false;
+    private boolean stopped = false;
+
+    public Node(Config config) {
+        this.config = config;
+        this.nodeThread = new NodeThread(config.sharedFolder, config.sharedSecret, config.sharedSubfolders, null);
+        nodeThread.setChunkSize(config.chunkSize);
+        nodeThread.setConnectionLimits(config.maxConnections, config.maxConnectionsPerPeer);
+        nodeThread.setChunkCacheSize(config.chunkCacheSize);
+        nodeThread.setCompression(config.compression);
+        this.transferManager = new TransferManager(nodeThread, config.maxConcurrentDownloads);
+        setUploadLimits(config.uploadLimit, config.uploadLimitPerPeer);
+        setDownloadLimits(config.downloadLimit, config.downloadLimitPerPeer, config.downloadLimitPerTransfer);
+    }
+
+    // Rates in bytes per second, 0 for unlimited. They can be changed at any time and apply from the next chunk on.
+    public void setUploadLimits(long total, long perPeer) {
+        config.uploadLimit = total;
+        config.uploadLimitPerPeer = perPeer;
+        nodeThread.uploadLimiter.setTotalRate(total);
+        nodeThread.uploadLimiter.setPerPeerRate(perPeer);
+    }
+
+    // The per-transfer rate is what new downloads start with; running ones keep theirs (see Transfer.setRateLimit)
+    public void setDownloadLimits(long total, long perPeer, long perTransfer) {
+        config.downloadLimit = total;
+        config.downloadLimitPerPeer = perPeer;
+        config.downloadLimitPerTransfer = perTransfer;
+        nodeThread.downloadLimiter.setTotalRate(total);
+        nodeThread.downloadLimiter.setPerPeerRate(perPeer);
+        transferManager.setTransferRateLimit(perTransfer);
+    }
+
+    // Indexes the shared folder, starts serving it and starts announcing this node
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        nodeThread.start();
+        startMetricsExport();
+    }
+
+    // Metrics are collected either way; exporting them is what the config switches on
+    private void startMetricsExport() {
+        if (config.jmx) {
+            try {
+                ObjectName name = new ObjectName("P2PFileSharing:type=Metrics,folder=" + ObjectName.quote(config.sharedFolder));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(nodeThread.metrics, name);
+                metricsMBeanName = name;
+            } catch (JMException e) {
+                e.printStackTrace(); // E.g. a second node sharing the same folder in this JVM
+            }
+        }
+        if (config.metricsPort > 0) {
+            try {
+                metricsServer = new MetricsServer(nodeThread.metrics, config.metricsPort);
+                metricsServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Stops announcing this node and says goodbye to the peers, but keeps serving
+    public void disconnect() {
+        nodeThread.stopBroadcasting();
+        nodeThread.sendDisconnectionMessage();
+    }
+
+    public void connect() {
+        nodeThread.startBroadcasting();
+    }
+
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (metricsMBeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsMBeanName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        transferManager.shutdown();
+        nodeThread.shutdown();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public PeerRegistry getPeerRegistry() {
+        return nodeThread.peerRegistry;
+    }
+
+    public Metrics getMetrics() {
+        return nodeThread.metrics;
+    }
+
+    public TransferManager getTransferManager() {
+        return transferManager;
+    }
+
+    // Direct access for benchmarks and tools that work below the download level
+    public NodeThread getNodeThread() {
+        return nodeThread;
+    }
+
+    public List<String> listPeers() {
+        List<String> peers = nodeThread.peerRegistry.snapshot().getActivePeers();
+        Collections.sort(peers);
+        return peers;
+    }
+
+    public List<String> listLocalFiles() {
+        return nodeThread.findAllFilesInSharedFolder();
+    }
+
+    public boolean hasLocalFile(String fileName) {
+        return nodeThread.hasLocalFile(fileName);
+    }
+
+    // Files offered by active peers whose name contains the query, ignoring case; an empty query lists them all
+    public List<String> search(String query) {
+        String needle = query.trim().toLowerCase(Locale.ROOT);
+        List<String> matches = new ArrayList<>();
+        for (String file : nodeThread.peerRegistry.snapshot().getAvailableFiles()) {
+            if (file.toLowerCase(Locale.ROOT).contains(needle)) {
+                matches.add(file);
+            }
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    // Downloads the file from every active peer that has it; the future completes with the finished file
+    public CompletableFuture<Path> download(String fileName) {
+        List<String> peers = nodeThread.peerRegistry.findPeersWithFile(fileName);
+        if (peers.isEmpty()) {
+            return CompletableFuture.failedFuture(new IOException("No peer shares " + fileName));
+        }
+        return download(fileName, peers);
+    }
+
+    // Downloads many files, each from every active peer that has it. Small files travel several to a request;
+    // the future completes with their transfers once all of them have finished, failed ones included.
+    public CompletableFuture<List<Transfer>> downloadAll(Collection<String> fileNames) {
+        Map<String, List<String>> peersByFile = new LinkedHashMap<>();
+        for (String fileName : fileNames) {
+            String name = fileName.trim();
+            peersByFile.put(name, nodeThread.peerRegistry.findPeersWithFile(name));
+        }
+        return transferManager.downloadAll(peersByFile).thenCompose(transfers ->
+                CompletableFuture.allOf(transfers.stream().map(Transfer::whenFinished).toArray(CompletableFuture<?>[]::new))
+                        .thenApply(done -> transfers));
+    }
+
+    // Everything a peer shares that is not here yet; other peers that have the same files help
+    public CompletableFuture<List<Transfer>> downloadAllFrom(String peerIP) {
+        List<String> missing = new ArrayList<>();
+        for (String fileName : nodeThread.peerRegistry.getFiles(peerIP)) {
+            if (!hasLocalFile(fileName)) {
+                missing.add(fileName);
+            }
+        }
+        return downloadAll(missing);
+    }
+
+    // Downloads from the given peers, e.g. a seed known in advance that has not been discovered yet
+    public CompletableFuture<Path> download(String fileName, List<String> peerIPs) {
+        Path target = Paths.get(config.sharedFolder, fileName.trim());
+        return transferManager.download(fileName.trim(), peerIPs).whenFinished().thenCompose(transfer ->
+                transfer.getState() == Transfer.State.COMPLETED ? CompletableFuture.completedFuture(target)
+                        : CompletableFuture.failedFuture(new IOException("Download of " + fileName + " failed: " + transfer.getMessage())));
+    }
+}
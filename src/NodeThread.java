@@ -1,12 +1,16 @@
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.net.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -15,83 +19,348 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 public class NodeThread extends Thread {
     private static final int UDP_PORT = 5000; // Port for listening/sending
-    private static final int CHUNK_SIZE = 512 * 1024; // 512KB
     private static final int TCP_PORT = 12345; // TCP port for data transfer
     private static final int BUFFER_SIZE = 1024; // Buffer size for packet
+    private static final int MAX_PIPELINED_REQUESTS = 8; // Requests answered at once on one session
     private static final String BROADCAST_ADDRESS = "255.255.255.255"; // Broadcast address
+    private static final long BEACON_INTERVAL_MILLIS = 3000;
+    private static final int MISSED_BEACONS_BEFORE_EXPIRY = 3;
     public String sharedFolderPath; // Path to the shared folder
     private String sharedSecretKey;
+    private final byte[] sharedSecretBytes; // What beacons are matched against
     private NodeDiscoveryListener listener;
     private volatile boolean running = true;
     private Thread broadcastingThread;
-    public Map<String, List<String>> filesByNode = new HashMap<>();
-    public Map<String, Boolean> nodeConnectionStatus = new HashMap<>();
+    private volatile DatagramSocket discoverySocket;
+    private volatile boolean shutDown = false;
+    public final PeerRegistry peerRegistry = new PeerRegistry(); // Peers seen on the network and the files they share
+    public final PeerLivenessTracker peerLiveness = new PeerLivenessTracker(BEACON_INTERVAL_MILLIS, MISSED_BEACONS_BEFORE_EXPIRY, this::onPeerExpired);
     private Set<String> selectedSharedFolders;
+    private final SharedFileCatalog catalog;
+    private ChunkServer chunkServer;
+    private int maxConnections = 64;
+    private int maxConnectionsPerPeer = 8;
+    private final FileChannelPool fileChannels = new FileChannelPool();
+    private final ManifestCache manifests = new ManifestCache();
+    private final ChunkCache chunkCache;
+    private final ConcurrentHashMap<String, ChunkFileWriter> partialDownloads = new ConcurrentHashMap<>();
+    private final ExecutorService requestWorkers = Executors.newCachedThreadPool(runnable -> {
+        Thread worker = new Thread(runnable);
+        worker.setDaemon(true);
+        return worker;
+    });
+    private final PeerConnectionPool peerConnections = new PeerConnectionPool(TCP_PORT);
+    private final String nodeId = UUID.randomUUID().toString(); // Changes on every start, so peers know to pull a full catalog
+    private final Map<String, String> catalogVersionByNode = new ConcurrentHashMap<>(); // IP -> "<node ID>:<version>" last pulled
+    private final Set<String> catalogSyncsInFlight = ConcurrentHashMap.newKeySet();
+    private volatile boolean zeroCopy = true; // Send chunks with FileChannel.transferTo instead of a heap buffer
+    private volatile boolean compression = true; // Ask peers for deflated chunks and deflate the chunks we serve when asked
+    private final ChunkCompression chunkCompression = new ChunkCompression();
+    private volatile int chunkSizeSetting = ChunkSizing.AUTO; // Chunk size of our downloads, or AUTO to pick one per download
+    public final BandwidthLimiter uploadLimiter = new BandwidthLimiter(TokenBucket.UNLIMITED, TokenBucket.UNLIMITED); // Chunks we serve
+    public final BandwidthLimiter downloadLimiter = new BandwidthLimiter(TokenBucket.UNLIMITED, TokenBucket.UNLIMITED); // Chunks we fetch
+    public final Metrics metrics = new Metrics();
+    private final Metrics.HistogramFamily chunkRequestLatency = metrics.histogramFamily("p2p_chunk_request_seconds",
+            "Time from sending a chunk request to receiving all its chunks, per peer", "peer", Metrics.NETWORK_LATENCY_BOUNDS, Metrics.NANOS_TO_SECONDS);
+    private final Metrics.Counter bytesReceived = metrics.counter("p2p_received_bytes_total", "Chunk bytes received from peers");
+    private final Metrics.Counter bytesServed = metrics.counter("p2p_served_bytes_total", "Chunk bytes sent to peers");
+    private final Metrics.Counter deflatedChunks = metrics.counter("p2p_deflated_chunks_total", "Chunks sent to peers deflated");
+    private final Metrics.Counter deflateSavedBytes = metrics.counter("p2p_deflate_saved_bytes_total", "Bytes deflating saved on chunks sent to peers");
+    public final Metrics.Counter deltaReusedBytes = metrics.counter("p2p_delta_reused_bytes_total", "Download bytes copied from an older local copy instead of fetched");
+    public final Metrics.Counter deltaFallbacks = metrics.counter("p2p_delta_fallbacks_total", "Downloads that could not compare with their older local copy");
+    public final Metrics.Counter chunkRetries = metrics.counter("p2p_chunk_retries_total", "Chunks requested again after a failed or corrupt delivery");
+    private final Metrics.Counter beaconsReceived = metrics.counter("p2p_beacons_received_total", "Beacons of our group received");
+    private final Metrics.Counter beaconsDropped = metrics.counter("p2p_beacons_dropped_total", "Beacons of other groups and malformed beacons");
+    private final Metrics.Counter beaconsSent = metrics.counter("p2p_beacons_sent_total", "Beacons broadcast");
+    private final Metrics.Histogram catalogLookupLatency = metrics.histogram("p2p_catalog_lookup_seconds",
+            "Time to find a shared file by name", Metrics.LOOKUP_LATENCY_BOUNDS, Metrics.NANOS_TO_SECONDS);
 
     public NodeThread(String sharedFolderPath, String sharedSecretKey, Set<String> selectedSharedFolders, NodeDiscoveryListener listener) {
         this.sharedFolderPath = sharedFolderPath;
         this.selectedSharedFolders = selectedSharedFolders;
         this.sharedSecretKey = sharedSecretKey;
+        this.sharedSecretBytes = sharedSecretKey.getBytes(StandardCharsets.UTF_8);
         this.listener = listener;
+        this.catalog = new SharedFileCatalog(sharedFolderPath, selectedSharedFolders);
+        catalog.setListener(new SharedFileCatalog.Listener() {
+            @Override
+            public void fileChanged(SharedFileCatalog.SharedFile file) {
+                manifests.prepare(file);
+            }
+
+            @Override
+            public void fileRemoved(Path path) {
+                manifests.invalidate(path);
+            }
+        });
+        this.chunkCache = new ChunkCache(ChunkCache.DEFAULT_CAPACITY, metrics);
+        metrics.gauge("p2p_server_connections", "Connections the chunk server is answering", this::getActiveServerConnections);
+        metrics.gauge("p2p_peer_sessions", "Open sessions to peers we download from", peerConnections::getSessionCount);
+        metrics.gauge("p2p_active_peers", "Peers currently announcing themselves", () -> peerRegistry.snapshot().getActivePeers().size());
+        metrics.gauge("p2p_shared_files", "Files in the shared folder index", catalog::size);
+        metrics.gauge("p2p_pending_flush_bytes", "Downloaded bytes not yet recorded in a progress file", this::getUnsavedDownloadBytes);
     }
 
     @Override
     public void run() {
+        catalog.start(); // Index the shared folder before the first broadcast
+        peerLiveness.start();
         new Thread(this::listenForEcho).start();
-        new Thread(this::broadcastEcho).start();
-        new Thread(this::startTCPServer).start();
+        synchronized (this) {
+            broadcastingThread = new Thread(this::broadcastEcho);
+            broadcastingThread.start();
+        }
+        startChunkServer();
+    }
+
+    // Says goodbye and releases every socket and thread; the node cannot be started again
+    public void shutdown() {
+        shutDown = true;
+        stopBroadcasting();
+        sendDisconnectionMessage();
+        DatagramSocket socket = discoverySocket;
+        if (socket != null) {
+            socket.close();
+        }
+        stopChunkServer();
+        closePeerConnections();
+        peerLiveness.stop();
+        catalog.stop();
+    }
+
+    public synchronized void startChunkServer() {
+        if (chunkServer == null) {
+            catalog.start();
+            chunkServer = new ChunkServer(TCP_PORT, this::serveClient);
+            chunkServer.setMaxConnections(maxConnections);
+            chunkServer.setMaxConnectionsPerPeer(maxConnectionsPerPeer);
+            new Thread(chunkServer::run).start();
+        }
+    }
+
+    public synchronized void stopChunkServer() {
+        if (chunkServer != null) {
+            chunkServer.stop();
+            chunkServer = null;
+        }
+        fileChannels.closeAll();
+        chunkCache.clear();
+    }
+
+    public synchronized int getActiveServerConnections() {
+        return chunkServer != null ? chunkServer.getActiveConnections() : 0;
+    }
+
+    private long getUnsavedDownloadBytes() {
+        long unsaved = 0;
+        for (ChunkFileWriter partialDownload : partialDownloads.values()) {
+            unsaved += partialDownload.getUnsavedBytes();
+        }
+        return unsaved;
+    }
+
+    public synchronized void setConnectionLimits(int maxConnections, int maxConnectionsPerPeer) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+        if (chunkServer != null) {
+            chunkServer.setMaxConnections(maxConnections);
+            chunkServer.setMaxConnectionsPerPeer(maxConnectionsPerPeer);
+        }
+    }
+
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    // Deflate chunks of files that shrink, in both directions, with peers that speak protocol 7
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    // Bytes of popular chunks kept in memory to serve without reading the file, 0 for none
+    public void setChunkCacheSize(long bytes) {
+        chunkCache.setCapacity(bytes);
+    }
+
+    public long getChunkCacheSize() {
+        return chunkCache.getCapacity();
+    }
+
+    // A fixed chunk size for our downloads, or ChunkSizing.AUTO; what we serve is always up to the downloader
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize != ChunkSizing.AUTO && !ChunkSizing.isValid(chunkSize)) {
+            throw new IllegalArgumentException("Chunk size must be a power of two between "
+                    + ChunkSizing.MIN_CHUNK_SIZE + " and " + ChunkSizing.MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        this.chunkSizeSetting = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSizeSetting;
+    }
+
+    // The configured size, or in auto mode one sized for the file and the best per-request speed seen from these peers
+    public int chooseChunkSize(long fileSize, List<String> peerIPs) {
+        int chunkSize = chunkSizeSetting;
+        if (chunkSize != ChunkSizing.AUTO) {
+            return chunkSize;
+        }
+        double bytesPerSecond = 0;
+        for (String peerIP : peerIPs) {
+            PeerLivenessTracker.PeerHealth health = peerLiveness.getHealth(peerIP);
+            if (health != null) {
+                bytesPerSecond = Math.max(bytesPerSecond, health.getBytesPerSecond());
+            }
+        }
+        return ChunkSizing.choose(fileSize, bytesPerSecond);
+    }
+
+    // For a download that can reuse an older copy of the file, see DeltaSync
+    public int chooseDeltaChunkSize(long fileSize) {
+        int chunkSize = chunkSizeSetting;
+        return chunkSize != ChunkSizing.AUTO ? chunkSize : ChunkSizing.finest(fileSize);
     }
 
     private void listenForEcho() {
         try (DatagramSocket socket = new DatagramSocket(5000)) {
+            discoverySocket = socket;
+            if (shutDown) {
+                return;
+            }
             byte[] receiveData = new byte[BUFFER_SIZE];
             while (true) {
                 DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
                 socket.receive(receivePacket);
+                if (Beacon.isBeacon(receiveData, 0, receivePacket.getLength())) {
+                    // Decoded in place; beacons of other groups are dropped without a String being made
+                    Beacon beacon = running ? Beacon.decode(receiveData, 0, receivePacket.getLength(), sharedSecretBytes) : null;
+                    if (beacon == null) {
+                        beaconsDropped.increment();
+                    } else {
+                        beaconsReceived.increment();
+                        String senderIP = receivePacket.getAddress().getHostAddress();
+                        peerLiveness.heartbeat(senderIP);
+                        peerRegistry.markActive(senderIP);
+                        syncCatalog(senderIP, beacon.nodeId, beacon.catalogVersion);
+                    }
+                    continue;
+                }
                 String receivedMessage = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
 
                 String senderIP = receivePacket.getAddress().getHostAddress();
                 
-                if (receivedMessage.contains("Discovery:") && receivedMessage.contains(sharedSecretKey) && running) {
-                	String[] parts = receivedMessage.split(":", 3);
-                	if (parts.length >= 3) {
-                        List<String> fileList = Arrays.asList(parts[2].split(","));
-                        filesByNode.put(senderIP, fileList);
-                	}
+                if (receivedMessage.startsWith("Discovery:" + sharedSecretKey + ":") && running) {
+                    // Nodes that predate beacons still send Discovery:<secret>:<name>,<name>,... with their whole file list
+                    String files = receivedMessage.substring(("Discovery:" + sharedSecretKey + ":").length());
+                    peerRegistry.replaceFiles(senderIP, files.isEmpty() ? Collections.emptyList() : Arrays.asList(files.split(",")));
+                	peerLiveness.heartbeat(senderIP);
+                	peerRegistry.markActive(senderIP);
                 	if (listener != null) {
                         listener.onNodeDiscovered(senderIP);
                     }
-                	nodeConnectionStatus.put(senderIP, true);
                 }
-                else if (receivedMessage.contains("Goodbye:") && receivedMessage.contains(sharedSecretKey) && running) {
-                    // Notify the listener about the node disconnection
-                    if (listener != null) {
-                        listener.onNodeDisconnected(senderIP);
-                    }
-                    nodeConnectionStatus.put(senderIP, false);
+                else if (receivedMessage.equals("Goodbye:" + sharedSecretKey) && running) {
+                    // A peer that left on purpose starts over if it comes back
+                    peerLiveness.forget(senderIP);
+                    catalogVersionByNode.remove(senderIP);
+                    forgetPeer(senderIP);
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!shutDown) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // The peer stopped sending beacons without saying goodbye, e.g. it crashed or lost its link.
+    // Its catalog version is kept, so nothing is pulled again if it comes back unchanged.
+    private void onPeerExpired(String peerIP) {
+        forgetPeer(peerIP);
+    }
+
+    // What leaving and expiring have in common, so neither keeps per-peer state the other drops
+    private void forgetPeer(String peerIP) {
+        peerRegistry.markInactive(peerIP);
+        peerConnections.disconnect(peerIP);
+        uploadLimiter.removePeer(peerIP);
+        downloadLimiter.removePeer(peerIP);
+        chunkRequestLatency.remove(peerIP);
+        if (listener != null) {
+            listener.onNodeDisconnected(peerIP);
         }
     }
 
+    // Pulls the peer's catalog changes in the background when its beacon announces a version we have not seen
+    private void syncCatalog(String senderIP, String senderNodeId, long senderVersion) {
+        String knownVersion = catalogVersionByNode.get(senderIP);
+        if ((senderNodeId + ":" + senderVersion).equals(knownVersion)) {
+            if (listener != null) {
+                listener.onNodeDiscovered(senderIP);
+            }
+            return;
+        }
+        if (!catalogSyncsInFlight.add(senderIP)) {
+            return; // Already pulling from this peer
+        }
+        requestWorkers.execute(() -> {
+            try {
+                // A restarted node has a new ID, and its versions start over
+                long sinceVersion = -1;
+                if (knownVersion != null && knownVersion.startsWith(senderNodeId + ":")) {
+                    sinceVersion = Long.parseLong(knownVersion.substring(senderNodeId.length() + 1));
+                }
+                long since = sinceVersion;
+                byte[] response = negotiateProtocolVersion(senderIP) >= 4
+                        ? requestFromPeer(senderIP, session -> session.requestCatalog(since))
+                        : requestFromPeer(senderIP, "CatalogRequest:" + sinceVersion);
+                SharedFileCatalog.Changes changes = SharedFileCatalog.Changes.decode(response);
+
+                peerRegistry.applyChanges(senderIP, changes.full, changes.added, changes.removed);
+                catalogVersionByNode.put(senderIP, senderNodeId + ":" + changes.version);
+
+                if (listener != null) {
+                    listener.onNodeDiscovered(senderIP);
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // Retried on the next beacon
+            } finally {
+                catalogSyncsInFlight.remove(senderIP);
+            }
+        });
+    }
+
     private void broadcastEcho() {
         try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+            InetAddress broadcastAddress = InetAddress.getByName(BROADCAST_ADDRESS);
+            long encodedVersion = -1;
+            DatagramPacket sendPacket = null;
             while (!Thread.currentThread().isInterrupted() && running) {
-                socket.setBroadcast(true);
-                List<String> fileList = findAllFilesInSharedFolder();
-                String fileString = String.join(",", fileList);
-                String message = "Discovery:" + this.sharedSecretKey + ":" + fileString;
-                byte[] sendData = message.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getByName(BROADCAST_ADDRESS), UDP_PORT);
+                // The datagram is only encoded again when the catalog changes
+                long catalogVersion = catalog.getVersion();
+                if (sendPacket == null || catalogVersion != encodedVersion) {
+                    byte[] sendData = new Beacon(nodeId, catalogVersion, this.sharedSecretKey).encode();
+                    sendPacket = new DatagramPacket(sendData, sendData.length, broadcastAddress, UDP_PORT);
+                    encodedVersion = catalogVersion;
+                }
                 socket.send(sendPacket);
+                beaconsSent.increment();
                 try {
-                    Thread.sleep(3000); 
+                    Thread.sleep(BEACON_INTERVAL_MILLIS);
                 } catch (InterruptedException e) {
                     if (!running) {
                         break;
@@ -106,15 +375,15 @@ public class NodeThread extends Thread {
     }
 
     
-    public void stopBroadcasting() {
+    public synchronized void stopBroadcasting() {
         this.running = false;
         if (broadcastingThread != null) {
             broadcastingThread.interrupt();
         }
     }
     
-    public void startBroadcasting() {
-        if (!running) {
+    public synchronized void startBroadcasting() {
+        if (!running && !shutDown) {
             running = true;
             broadcastingThread = new Thread(this::broadcastEcho);
             broadcastingThread.start();
@@ -134,171 +403,947 @@ public class NodeThread extends Thread {
     }
     
     public List<String> findAllFilesInSharedFolder() {
-        List<String> fileList = new ArrayList<>();
-        Path sharedFolderPath = Paths.get(this.sharedFolderPath);
+        return catalog.getAdvertisedNames();
+    }
+
+    public boolean hasLocalFile(String filename) {
+        return findSharedFile(filename) != null;
+    }
+    
+    public long getFileSize(String filename) {
+        SharedFileCatalog.SharedFile sharedFile = findSharedFile(filename);
+        if (sharedFile != null) {
+            return sharedFile.size;
+        }
+        ChunkFileWriter partialDownload = partialDownloads.get(filename);
+        return partialDownload != null ? partialDownload.getManifest().getFileSize() : -1;
+    }
 
+    // Lets other peers fetch the chunks this node has already downloaded
+    // and advertises the file, so peers that want it too can ask which chunks are here (OP_HAVE)
+    public void registerPartialDownload(String filename, ChunkFileWriter partialDownload) {
+        partialDownloads.put(filename, partialDownload);
+        catalog.addPartialDownload(filename);
+    }
+
+    // Called once a completed download is in place, so peers see its name stay
+    public void unregisterPartialDownload(String filename, ChunkFileWriter partialDownload) {
+        catalog.removePartialDownload(filename);
+        partialDownloads.remove(filename, partialDownload);
+    }
+
+    public long requestFileSize(String filename, String requestedIP) {
         try {
-            // Add files directly in the shared folder
-            Files.walk(sharedFolderPath, 1)
-                 .filter(Files::isRegularFile)
-                 .map(Path::getFileName)
-                 .map(Path::toString)
-                 .forEach(fileList::add);
-
-            // Add files from selected subfolders
-            if (selectedSharedFolders != null) {
-                for (String folderPath : selectedSharedFolders) {
-                    Path subFolderPath = Paths.get(folderPath);
-                    Files.walk(subFolderPath, 1)
-                         .filter(Files::isRegularFile)
-                         .map(path -> subFolderPath.relativize(path).toString())
-                         .forEach(fileList::add);
+            int protocolVersion = negotiateProtocolVersion(requestedIP);
+            if (protocolVersion < 0) {
+                return -1;
+            }
+            byte[] response = protocolVersion >= 4
+                    ? requestFromPeer(requestedIP, session -> session.requestFileSize(filename))
+                    : requestFromPeer(requestedIP, "FileSizeRequest:" + filename);
+            return ByteBuffer.wrap(response).getLong();
+        } catch (PeerSession.LegacyPeerException e) {
+            return legacyRequestFileSize(filename, requestedIP);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1; // Indicate an error if the connection fails
+        }
+    }
+    
+    public byte[] requestFileChunk(String filename, String requestedIP, int chunkID) {
+        return requestFileChunk(filename, requestedIP, chunkID, ChunkSizing.DEFAULT_CHUNK_SIZE);
+    }
+
+    public byte[] requestFileChunk(String filename, String requestedIP, int chunkID, int chunkSize) {
+        long startTime = System.nanoTime();
+        byte[] chunk = fetchFileChunk(filename, requestedIP, chunkID, chunkSize);
+        if (chunk.length > 0) {
+            chunkRequestLatency.labels(requestedIP).observe(System.nanoTime() - startTime);
+            bytesReceived.add(chunk.length);
+        }
+        return chunk;
+    }
+
+    private byte[] fetchFileChunk(String filename, String requestedIP, int chunkID, int chunkSize) {
+        try {
+            // Pipelined over the shared session to this peer; older peers only know the default chunk size
+            int protocolVersion = negotiateProtocolVersion(requestedIP);
+            if (protocolVersion >= 4) {
+                boolean acceptDeflate = compression && protocolVersion >= 7;
+                byte[] answer = requestFromPeer(requestedIP, session -> session.requestChunk(filename, chunkSize, chunkID, acceptDeflate));
+                return acceptDeflate ? ChunkCompression.decode(answer, chunkSize) : answer;
+            }
+            if (protocolVersion == 3) {
+                return requestFromPeer(requestedIP, "FileChunkRequest:" + chunkSize + ":" + chunkID + ":" + filename);
+            }
+            if (protocolVersion < 0 || chunkSize != ChunkSizing.DEFAULT_CHUNK_SIZE) {
+                return new byte[0];
+            }
+            return requestFromPeer(requestedIP, "FileChunkRequest:" + filename + ":" + chunkID);
+        } catch (PeerSession.LegacyPeerException e) {
+            return chunkSize == ChunkSizing.DEFAULT_CHUNK_SIZE ? legacyRequestFileChunk(filename, requestedIP, chunkID) : new byte[0];
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new byte[0]; // Return empty array on error
+        }
+    }
+
+    // Several chunks in one request: one frame out and one response per chunk on protocol 4, one request
+    // after the other before that. A chunk that could not be fetched is empty.
+    public byte[][] requestFileChunks(String filename, String requestedIP, int[] chunkIDs, int chunkSize) {
+        byte[][] chunks = new byte[chunkIDs.length][];
+        if (chunkIDs.length == 1 || negotiateProtocolVersion(requestedIP) < 4) {
+            for (int i = 0; i < chunkIDs.length; i++) {
+                chunks[i] = requestFileChunk(filename, requestedIP, chunkIDs[i], chunkSize);
+            }
+            return chunks;
+        }
+        long startTime = System.nanoTime();
+        try {
+            boolean acceptDeflate = compression && negotiateProtocolVersion(requestedIP) >= 7;
+            byte[][] received = peerConnections.requestChunks(requestedIP, filename, chunkSize, chunkIDs, acceptDeflate);
+            if (acceptDeflate) {
+                for (int i = 0; i < received.length; i++) {
+                    received[i] = received[i] != null ? decodeChunk(received[i], chunkSize) : null;
                 }
             }
+            int totalBytes = 0;
+            boolean complete = true;
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = received[i] != null ? received[i] : new byte[0];
+                totalBytes += chunks[i].length;
+                complete &= received[i] != null;
+            }
+            // The whole batch is one throughput sample
+            bytesReceived.add(totalBytes);
+            if (complete) {
+                long elapsedNanos = System.nanoTime() - startTime;
+                peerLiveness.recordSuccess(requestedIP, elapsedNanos, totalBytes);
+                chunkRequestLatency.labels(requestedIP).observe(elapsedNanos);
+            } else {
+                peerLiveness.recordFailure(requestedIP);
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            peerLiveness.recordFailure(requestedIP);
+            Arrays.fill(chunks, new byte[0]);
         }
+        return chunks;
+    }
 
-        return fileList;
+    // Sizes of many files in one request, -1 for those the peer does not have in full.
+    // Null if the peer predates protocol 6 or did not answer; at most WireProtocol.MAX_BATCH_NAMES names.
+    public long[] requestFileSizes(List<String> filenames, String requestedIP) {
+        if (negotiateProtocolVersion(requestedIP) < 6) {
+            return null;
+        }
+        try {
+            ByteBuffer response = ByteBuffer.wrap(requestFromPeer(requestedIP, session -> session.requestFileInfo(filenames)));
+            long[] sizes = new long[filenames.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = WireProtocol.unZigZag(WireProtocol.getVarLong(response));
+            }
+            return sizes;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
-    
-    public long getFileSize(String filename) {
-        Path fullPath = findFileInSharedFolder(filename);
-        if (fullPath == null) {
-            return -1;
+
+    // The contents of several small files in one answer (protocol 6). A file the peer did not send,
+    // or whose contents do not match the hash sent with them, is null; all are null if the request failed.
+    public byte[][] requestFiles(List<String> filenames, String requestedIP) {
+        byte[][] contents = new byte[filenames.size()][];
+        if (negotiateProtocolVersion(requestedIP) < 6) {
+            return contents;
         }
         try {
-            long fileSize = Files.size(fullPath);
-            return fileSize;
+            ByteBuffer response = ByteBuffer.wrap(requestFromPeer(requestedIP, session -> session.requestFiles(filenames)));
+            byte[] hash = new byte[ChunkManifest.HASH_LENGTH];
+            for (int i = 0; i < contents.length; i++) {
+                long size = WireProtocol.unZigZag(WireProtocol.getVarLong(response));
+                if (size < 0) {
+                    continue;
+                }
+                if (size > response.remaining() - hash.length) {
+                    throw new IOException("Truncated answer with " + filenames.size() + " files");
+                }
+                response.get(hash);
+                byte[] content = new byte[(int) size];
+                response.get(content);
+                if (Arrays.equals(hash, ChunkManifest.hash(content))) {
+                    contents[i] = content;
+                    bytesReceived.add(size);
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            Arrays.fill(contents, null);
+        }
+        return contents;
+    }
+
+    // Null if a deflated chunk arrived damaged; it is asked for again like a lost one
+    private static byte[] decodeChunk(byte[] answer, int chunkSize) {
+        try {
+            return ChunkCompression.decode(answer, chunkSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Connects if needed and returns the protocol version spoken with the peer; 0 for legacy peers, -1 if unreachable
+    public int negotiateProtocolVersion(String peerIP) {
+        try {
+            return peerConnections.session(peerIP).getProtocolVersion();
+        } catch (PeerSession.LegacyPeerException e) {
+            return 0;
+        } catch (IOException e) {
+            peerLiveness.recordFailure(peerIP);
             return -1;
         }
     }
 
-    public int requestFileSize(String filename, String requestedIP) {
-        int fileSize = -1;
+    private byte[] requestFromPeer(String peerIP, String requestMessage) throws IOException {
+        return requestFromPeer(peerIP, session -> session.send(requestMessage));
+    }
+
+    private byte[] requestFromPeer(String peerIP, PeerConnectionPool.Request request) throws IOException {
+        return requestFromPeer(peerIP, request, 0);
+    }
+
+    // Every answer feeds the peer's round-trip time and every failure its failure count.
+    // A timeout of 0 is the pool's usual one.
+    private byte[] requestFromPeer(String peerIP, PeerConnectionPool.Request request, long timeoutSeconds) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            byte[] response = timeoutSeconds > 0 ? peerConnections.request(peerIP, request, timeoutSeconds)
+                    : peerConnections.request(peerIP, request);
+            peerLiveness.recordSuccess(peerIP, System.nanoTime() - startTime, response.length);
+            return response;
+        } catch (PeerSession.LegacyPeerException e) {
+            throw e; // Not a failure; the caller falls back to the old protocol
+        } catch (IOException e) {
+            peerLiveness.recordFailure(peerIP);
+            throw e;
+        }
+    }
+
+    // Protocol version negotiated with a peer: 0 for nodes that predate sessions, -1 if not connected yet
+    public int getPeerProtocolVersion(String peerIP) {
+        return peerConnections.getProtocolVersion(peerIP);
+    }
 
+    // Nodes that predate sessions take one request per connection and send sizes as 32-bit ints
+    private long legacyRequestFileSize(String filename, String requestedIP) {
         try (Socket socket = new Socket(requestedIP, TCP_PORT);
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
              DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            dos.writeUTF("FileSizeRequest:" + filename);
+            int fileSize = dis.readInt();
+            return fileSize >= 0 ? fileSize : -1; // Old nodes wrap sizes over 2 GB
+        } catch (IOException e) {
+            e.printStackTrace();
+            peerLiveness.recordFailure(requestedIP);
+            return -1;
+        }
+    }
 
-            // Send the file size request with the prefix "FileSizeRequest:"
-            String requestMessage = "FileSizeRequest:" + filename;
-            dos.writeUTF(requestMessage);
+    private byte[] legacyRequestFileChunk(String filename, String requestedIP, int chunkID) {
+        try (Socket socket = new Socket(requestedIP, TCP_PORT);
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            out.writeUTF("FileChunkRequest:" + filename + ":" + chunkID);
+            byte[] chunkData = new byte[in.readInt()];
+            in.readFully(chunkData);
+            return chunkData;
+        } catch (IOException e) {
+            e.printStackTrace();
+            peerLiveness.recordFailure(requestedIP);
+            return new byte[0];
+        }
+    }
 
-            // Wait for the server to send back the file size
-            fileSize = dis.readInt();
+    // Which chunks of the file the peer can serve. Peers before protocol 5 only advertise files they have in full;
+    // an unreachable peer has nothing.
+    public ChunkAvailability requestAvailability(String filename, String requestedIP) {
+        try {
+            int protocolVersion = negotiateProtocolVersion(requestedIP);
+            if (protocolVersion < 0) {
+                return ChunkAvailability.NONE;
+            }
+            if (protocolVersion < 5) {
+                return ChunkAvailability.COMPLETE;
+            }
+            return ChunkAvailability.decode(requestFromPeer(requestedIP, session -> session.requestAvailability(filename)));
+        } catch (PeerSession.LegacyPeerException e) {
+            return ChunkAvailability.COMPLETE;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ChunkAvailability.NONE;
+        }
+    }
+
+    public ChunkManifest requestManifest(String filename, String requestedIP) {
+        return requestManifest(filename, requestedIP, ChunkSizing.DEFAULT_CHUNK_SIZE);
+    }
 
-            // You can add additional logic here if needed
+    public ChunkManifest requestManifest(String filename, String requestedIP, int chunkSize) {
+        try {
+            // The peer hashes the file first unless it already has, which can take minutes for a large file
+            byte[] response;
+            int protocolVersion = negotiateProtocolVersion(requestedIP);
+            if (protocolVersion >= 4) {
+                response = requestFromPeer(requestedIP, session -> session.requestManifest(filename, chunkSize),
+                        PeerConnectionPool.HASHING_TIMEOUT_SECONDS);
+            } else if (protocolVersion == 3) {
+                response = requestFromPeer(requestedIP, session -> session.send("ManifestRequest:" + chunkSize + ":" + filename),
+                        PeerConnectionPool.HASHING_TIMEOUT_SECONDS);
+            } else if (protocolVersion >= 0 && chunkSize == ChunkSizing.DEFAULT_CHUNK_SIZE) {
+                response = requestFromPeer(requestedIP, session -> session.send("ManifestRequest:" + filename),
+                        PeerConnectionPool.HASHING_TIMEOUT_SECONDS);
+            } else {
+                return null;
+            }
+            ChunkManifest manifest = response.length > 0 ? ChunkManifest.decode(response) : null;
+            return manifest != null && manifest.getChunkSize() == chunkSize ? manifest : null;
+        } catch (PeerSession.LegacyPeerException e) {
+            return null; // Old nodes have no manifests
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
+    // The DeltaSync checksum of every chunk of the peer's copy, or null if the peer cannot send them
+    public int[] requestChunkChecksums(String filename, String requestedIP, int chunkSize) {
+        try {
+            if (negotiateProtocolVersion(requestedIP) < 8) {
+                return null;
+            }
+            // Read from the whole file unless the peer hashed them with the manifest
+            byte[] response = requestFromPeer(requestedIP, session -> session.requestChecksums(filename, chunkSize),
+                    PeerConnectionPool.HASHING_TIMEOUT_SECONDS);
+            if (response.length == 0 || response.length % Integer.BYTES != 0) {
+                return null;
+            }
+            int[] checksums = new int[response.length / Integer.BYTES];
+            ByteBuffer.wrap(response).asIntBuffer().get(checksums);
+            return checksums;
         } catch (IOException e) {
             e.printStackTrace();
-            return -1; // Indicate an error if the connection fails
+            return null;
         }
+    }
 
-        return fileSize;
+    public void closePeerConnections() {
+        peerConnections.closeAll();
     }
+
     
-    public byte[] requestFileChunk(String filename, String requestedIP, int chunkID) {
-        try (Socket socket = new Socket(requestedIP, TCP_PORT); 
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+    // Serves requests on one connection until the client closes it
+    private void serveClient(SocketChannel channel) throws IOException {
+        Socket clientSocket = channel.socket();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
+        ResponseHeader header = new ResponseHeader(0);
 
-            // Send request message
-            String requestMessage = "FileChunkRequest:" + filename + ":" + chunkID;
-            out.writeUTF(requestMessage);
+        while (true) {
+            // Read the request message from the client
+            String requestMessage;
+            try {
+                requestMessage = dis.readUTF();
+            } catch (EOFException e) {
+                return; // Client is done with this connection
+            }
 
-            // Wait for response (This is simplified, actual implementation will depend on your protocol)
-            int chunkSize = in.readInt();
-            byte[] chunkData = new byte[chunkSize];
-            in.readFully(chunkData);
+            if (requestMessage.startsWith(PeerSession.SESSION_REQUEST + ":")) {
+                // Answer with the highest version both sides speak
+                int clientVersion = parseProtocolVersion(requestMessage.substring(PeerSession.SESSION_REQUEST.length() + 1));
+                int protocolVersion = Math.min(clientVersion, PeerSession.PROTOCOL_VERSION);
+                dos.writeInt(protocolVersion);
+                serveSession(channel, dis, dos, protocolVersion);
+                return;
+            }
+            else if (requestMessage.equals(PeerSession.SESSION_REQUEST)) {
+                serveSession(channel, dis, dos, 1); // Version 1 clients expect no reply
+                return;
+            }
+            else if (requestMessage.startsWith("FileSizeRequest:")) {
+                // Extract filename from the request message
+                String filename = requestMessage.substring("FileSizeRequest:".length());
 
-            return chunkData;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return new byte[0]; // Return empty array on error
+                // Get the file size
+                long fileSize = getFileSize(filename);
+
+                // Send the file size back to the client; -1 tells old clients the file is too large for them
+                dos.writeInt(fileSize <= Integer.MAX_VALUE ? (int) fileSize : -1);
+            }
+            else if (requestMessage.startsWith("FileChunkRequest:")) {
+                // FileChunkRequest:<name>:<chunk ID>; the name may itself contain colons
+                int separator = requestMessage.lastIndexOf(':');
+                if (separator > "FileChunkRequest:".length()) {
+                    String filename = requestMessage.substring("FileChunkRequest:".length(), separator);
+                    int chunkID = Integer.parseInt(requestMessage.substring(separator + 1));
+                    Path fullPath = findFileInSharedFolder(filename);
+                    throttleUpload(channel, filename, fullPath, null, chunkID, ChunkSizing.DEFAULT_CHUNK_SIZE);
+                    if (zeroCopy) {
+                        sendFileChunk(channel, header, 0, fullPath, chunkID, ChunkSizing.DEFAULT_CHUNK_SIZE, false);
+                    } else {
+                        sendFileChunkCopy(dos, header, 0, fullPath, chunkID, ChunkSizing.DEFAULT_CHUNK_SIZE, false);
+                    }
+                }
+            }
         }
     }
 
-    
-    private void startTCPServer() {
-        try (ServerSocket serverSocket = new ServerSocket(TCP_PORT)) {
-            while (true) {
-                try (Socket clientSocket = serverSocket.accept();
-                     DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-                     DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
-
-                    // Read the request message from the client
-                    String requestMessage = dis.readUTF();
-
-                    // Process only "FileSizeRequest" messages
-                    if (requestMessage.startsWith("FileSizeRequest:")) {
-                        // Extract filename from the request message
-                        String filename = requestMessage.substring("FileSizeRequest:".length());
-                        
-                        // Get the file size
-                        long fileSize = getFileSize(filename);
-
-                        // Send the file size back to the client
-                        dos.writeInt((int)fileSize);
+    // Writes the header in front of a response into one reused buffer: the length alone for one-off requests,
+    // the request ID and the length on sessions, both as varints from protocol 4 on.
+    // It is also the session's write lock, so responses never interleave.
+    private static class ResponseHeader {
+        private final int protocolVersion; // 0 outside sessions
+        private final ByteBuffer buffer = ByteBuffer.allocate(WireProtocol.MAX_HEADER_BYTES + Long.BYTES);
+
+        ResponseHeader(int protocolVersion) {
+            this.protocolVersion = protocolVersion;
+        }
+
+        // Positioned after the header; a small payload such as a file size may be put before flipping
+        ByteBuffer start(int requestId, int length) {
+            buffer.clear();
+            if (protocolVersion >= 4) {
+                WireProtocol.putVarInt(buffer, requestId);
+                WireProtocol.putVarInt(buffer, length);
+            } else {
+                if (protocolVersion > 0) {
+                    buffer.putInt(requestId);
+                }
+                buffer.putInt(length);
+            }
+            return buffer;
+        }
+    }
+
+    // An answer to one session request, run on a worker thread
+    private interface SessionAnswer {
+        void run() throws IOException;
+    }
+
+    // Reads tagged requests from a persistent session and answers them concurrently, in completion order
+    private void serveSession(SocketChannel channel, DataInputStream dis, DataOutputStream dos, int protocolVersion) throws IOException {
+        // A response header written right after the tail of the previous response would otherwise wait for the client's delayed ACK
+        channel.socket().setTcpNoDelay(true);
+        Semaphore inFlight = new Semaphore(MAX_PIPELINED_REQUESTS);
+        ResponseHeader header = new ResponseHeader(protocolVersion);
+        try {
+            if (protocolVersion >= 4) {
+                serveBinaryRequests(channel, dis, dos, header, inFlight);
+                return;
+            }
+            while (channel.isOpen()) {
+                int requestId;
+                try {
+                    requestId = dis.readInt();
+                } catch (EOFException e) {
+                    return; // Client closed the session
+                }
+                String requestMessage = dis.readUTF();
+                dispatch(channel, inFlight, () -> answerSessionRequest(channel, dos, header, protocolVersion, requestId, requestMessage));
+            }
+        } finally {
+            inFlight.acquireUninterruptibly(MAX_PIPELINED_REQUESTS); // Let in-flight responses finish before the channel closes
+        }
+    }
+
+    // Protocol 4: requests are decoded from one reused buffer on this thread; only the answers run on workers.
+    // The file name of a download's chunk requests is decoded once and reused while it repeats.
+    private void serveBinaryRequests(SocketChannel channel, DataInputStream dis, DataOutputStream dos,
+                                     ResponseHeader header, Semaphore inFlight) throws IOException {
+        byte[] request = new byte[1024];
+        ByteBuffer payload = ByteBuffer.wrap(request);
+        WireProtocol.NameDecoder names = new WireProtocol.NameDecoder();
+        int[] chunkIDs = new int[WireProtocol.MAX_BATCH_CHUNKS];
+        while (channel.isOpen()) {
+            int requestId;
+            try {
+                requestId = WireProtocol.readVarInt(dis);
+            } catch (EOFException e) {
+                return; // Client closed the session
+            }
+            int opcode = dis.readUnsignedByte();
+            boolean acceptDeflate = (opcode & WireProtocol.ACCEPTS_DEFLATE) != 0; // Only chunk requests carry it
+            opcode &= ~WireProtocol.ACCEPTS_DEFLATE;
+            int length = WireProtocol.readVarInt(dis);
+            if (length < 0 || length > WireProtocol.MAX_REQUEST_BYTES) {
+                throw new IOException("Request of " + length + " bytes is too large");
+            }
+            if (request.length < length) {
+                request = new byte[length];
+                payload = ByteBuffer.wrap(request);
+            }
+            dis.readFully(request, 0, length);
+            payload.clear().limit(length);
+
+            switch (opcode) {
+                case WireProtocol.OP_FILE_SIZE: {
+                    String filename = names.decode(payload, payload.remaining());
+                    dispatch(channel, inFlight, () -> answerFileSize(channel, header, requestId, filename));
+                    break;
+                }
+                case WireProtocol.OP_CHUNK: {
+                    int chunkSize = WireProtocol.getVarInt(payload);
+                    int chunkID = WireProtocol.getVarInt(payload);
+                    String filename = names.decode(payload, payload.remaining());
+                    dispatch(channel, inFlight, () -> answerChunk(channel, dos, header, requestId, filename, chunkSize, chunkID, acceptDeflate));
+                    break;
+                }
+                case WireProtocol.OP_CHUNKS: {
+                    // Every chunk is answered on its own, under the next request ID of the batch
+                    int chunkSize = WireProtocol.getVarInt(payload);
+                    int count = WireProtocol.getVarInt(payload);
+                    if (count < 1 || count > WireProtocol.MAX_BATCH_CHUNKS) {
+                        throw new IOException("Batch of " + count + " chunks");
+                    }
+                    for (int i = 0; i < count; i++) {
+                        chunkIDs[i] = WireProtocol.getVarInt(payload);
+                    }
+                    String filename = names.decode(payload, payload.remaining());
+                    for (int i = 0; i < count; i++) {
+                        int chunkRequestId = requestId + i;
+                        int chunkID = chunkIDs[i];
+                        dispatch(channel, inFlight, () -> answerChunk(channel, dos, header, chunkRequestId, filename, chunkSize, chunkID, acceptDeflate));
                     }
-                    else if (requestMessage.startsWith("FileChunkRequest")) {
-                    	String[] parts = requestMessage.split(":", 3);
-                        if (parts.length >= 3) {
-                            String filename = parts[1];
-                            int chunkID = Integer.parseInt(parts[2]);
-                            sendFileChunk(dos, filename, chunkID);
+                    break;
+                }
+                case WireProtocol.OP_MANIFEST: {
+                    int chunkSize = WireProtocol.getVarInt(payload);
+                    String filename = names.decode(payload, payload.remaining());
+                    dispatch(channel, inFlight, () -> answerManifest(channel, header, requestId, filename, chunkSize));
+                    break;
+                }
+                case WireProtocol.OP_CHECKSUMS: {
+                    int chunkSize = WireProtocol.getVarInt(payload);
+                    String filename = names.decode(payload, payload.remaining());
+                    dispatch(channel, inFlight, () -> answerChecksums(channel, header, requestId, filename, chunkSize));
+                    break;
+                }
+                case WireProtocol.OP_CATALOG: {
+                    long sinceVersion = WireProtocol.unZigZag(WireProtocol.getVarLong(payload));
+                    dispatch(channel, inFlight, () -> answerCatalog(channel, header, requestId, sinceVersion));
+                    break;
+                }
+                case WireProtocol.OP_HAVE: {
+                    String filename = names.decode(payload, payload.remaining());
+                    dispatch(channel, inFlight, () -> answerAvailability(channel, header, requestId, filename));
+                    break;
+                }
+                case WireProtocol.OP_FILE_INFO:
+                case WireProtocol.OP_FILES: {
+                    int count = WireProtocol.getVarInt(payload);
+                    if (count < 1 || count > WireProtocol.MAX_BATCH_NAMES) {
+                        throw new IOException("Batch of " + count + " names");
+                    }
+                    List<String> filenames = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        int nameLength = WireProtocol.getVarInt(payload);
+                        if (nameLength < 0 || nameLength > payload.remaining()) {
+                            throw new IOException("Truncated name in batch");
                         }
+                        filenames.add(names.decode(payload, nameLength));
                     }
+                    if (opcode == WireProtocol.OP_FILE_INFO) {
+                        dispatch(channel, inFlight, () -> answerFileInfo(channel, header, requestId, filenames));
+                    } else {
+                        dispatch(channel, inFlight, () -> answerFiles(channel, header, requestId, filenames));
+                    }
+                    break;
+                }
+                default:
+                    dispatch(channel, inFlight, () -> answerEmpty(channel, header, requestId));
+            }
+        }
+    }
 
-                    // The client socket will be closed here due to try-with-resources
+    private void dispatch(SocketChannel channel, Semaphore inFlight, SessionAnswer answer) {
+        inFlight.acquireUninterruptibly(); // Stop reading when the client pipelines too far ahead
+        requestWorkers.execute(() -> {
+            try {
+                answer.run();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                try {
+                    channel.close(); // A half-written response leaves the stream unusable
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    // Anything but a positive number fails the connection like any other I/O error
+    private static int parseProtocolVersion(String text) throws IOException {
+        try {
+            int version = Integer.parseInt(text);
+            if (version >= 1) {
+                return version;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below with the rest
+        }
+        throw new IOException("Invalid protocol version in session request: " + text);
+    }
 
-                } catch (IOException e) {
-                    e.printStackTrace(); // Handle exceptions as needed
+    // Protocols 1 to 3 send text requests
+    private void answerSessionRequest(SocketChannel channel, DataOutputStream dos, ResponseHeader header, int protocolVersion,
+                                      int requestId, String requestMessage) throws IOException {
+        if (requestMessage.startsWith("FileSizeRequest:")) {
+            answerFileSize(channel, header, requestId, requestMessage.substring("FileSizeRequest:".length()));
+        }
+        else if (requestMessage.startsWith("FileChunkRequest:")) {
+            // Version 3: FileChunkRequest:<chunk size>:<chunk ID>:<name>. Before: FileChunkRequest:<name>:<chunk ID>
+            String filename = null;
+            int chunkID = 0;
+            int chunkSize = ChunkSizing.DEFAULT_CHUNK_SIZE;
+            if (protocolVersion >= 3) {
+                String[] parts = requestMessage.split(":", 4);
+                if (parts.length == 4) {
+                    chunkSize = Integer.parseInt(parts[1]);
+                    chunkID = Integer.parseInt(parts[2]);
+                    filename = parts[3];
+                }
+            } else {
+                int separator = requestMessage.lastIndexOf(':');
+                if (separator > "FileChunkRequest:".length()) {
+                    filename = requestMessage.substring("FileChunkRequest:".length(), separator);
+                    chunkID = Integer.parseInt(requestMessage.substring(separator + 1));
                 }
             }
+            answerChunk(channel, dos, header, requestId, filename, chunkSize, chunkID, false);
+        }
+        else if (requestMessage.startsWith("CatalogRequest:")) {
+            answerCatalog(channel, header, requestId, Long.parseLong(requestMessage.substring("CatalogRequest:".length())));
+        }
+        else if (requestMessage.startsWith("ManifestRequest:")) {
+            // Version 3: ManifestRequest:<chunk size>:<name>. Before: ManifestRequest:<name>
+            String filename = requestMessage.substring("ManifestRequest:".length());
+            int chunkSize = ChunkSizing.DEFAULT_CHUNK_SIZE;
+            if (protocolVersion >= 3) {
+                String[] parts = filename.split(":", 2);
+                chunkSize = Integer.parseInt(parts[0]);
+                filename = parts.length == 2 ? parts[1] : "";
+            }
+            answerManifest(channel, header, requestId, filename, chunkSize);
+        }
+        else {
+            answerEmpty(channel, header, requestId); // Unknown request: empty answer keeps the session in sync
+        }
+    }
+
+    private void answerFileSize(SocketChannel channel, ResponseHeader header, int requestId, String filename) throws IOException {
+        long fileSize = getFileSize(filename);
+        synchronized (header) {
+            writeFully(channel, header.start(requestId, Long.BYTES).putLong(fileSize).flip());
+        }
+    }
+
+    // A null name or an invalid chunk size is answered as a missing file.
+    // With acceptDeflate the chunk is deflated when it shrinks, before taking the write lock, which others need meanwhile.
+    private void answerChunk(SocketChannel channel, DataOutputStream dos, ResponseHeader header, int requestId,
+                             String filename, int chunkSize, int chunkID, boolean acceptDeflate) throws IOException {
+        if (!ChunkSizing.isValid(chunkSize)) {
+            filename = null;
+        }
+        Path fullPath = filename != null ? findFileInSharedFolder(filename) : null;
+        ChunkFileWriter partialDownload = fullPath == null && filename != null ? partialDownloads.get(filename) : null;
+        if (partialDownload != null && partialDownload.getManifest().getChunkSize() != chunkSize) {
+            partialDownload = null; // Its chunks are cut differently
+        }
+        throttleUpload(channel, filename, fullPath, partialDownload, chunkID, chunkSize); // Outside the write lock, which others need meanwhile
+        ByteBuffer deflatedChunk = acceptDeflate && compression && fullPath != null ? deflateChunk(fullPath, chunkID, chunkSize) : null;
+        synchronized (header) {
+            if (deflatedChunk != null) {
+                int deflatedLength = deflatedChunk.remaining();
+                writeFully(channel, header.start(requestId, 1 + deflatedLength).put(ChunkCompression.DEFLATE).flip(), deflatedChunk);
+                bytesServed.add(deflatedLength);
+            } else if (partialDownload != null) {
+                sendPartialChunk(channel, header, requestId, partialDownload, chunkID, acceptDeflate);
+            } else if (zeroCopy) {
+                sendFileChunk(channel, header, requestId, fullPath, chunkID, chunkSize, acceptDeflate);
+            } else {
+                sendFileChunkCopy(dos, header, requestId, fullPath, chunkID, chunkSize, acceptDeflate);
+            }
+        }
+    }
+
+    // Null when the chunk goes out raw; deflated chunks are cached, so each is only compressed once
+    private ByteBuffer deflateChunk(Path fullPath, int chunkID, int chunkSize) throws IOException {
+        try (FileChannelPool.Lease lease = fileChannels.acquire(fullPath)) {
+            FileChannel fileChannel = lease.channel();
+            ByteBuffer deflatedChunk = chunkCache.getDeflated(fullPath, lease.lastModified(), fileChannel, chunkSize, chunkID, chunkCompression);
+            if (deflatedChunk != null) {
+                long chunkLength = Math.max(0, Math.min(chunkSize, fileChannel.size() - (long) chunkID * chunkSize));
+                deflatedChunks.increment();
+                deflateSavedBytes.add(chunkLength - deflatedChunk.remaining());
+            }
+            return deflatedChunk;
+        }
+    }
+
+    // Raw chunks answering a request that accepted deflated ones start with the encoding byte
+    private static ByteBuffer startChunk(ResponseHeader header, int requestId, int chunkLength, boolean acceptDeflate) {
+        return acceptDeflate ? header.start(requestId, 1 + chunkLength).put(ChunkCompression.RAW) : header.start(requestId, chunkLength);
+    }
+
+    // Waits until the upload limits let the chunk go to the peer. Each file a peer downloads from us is one flow,
+    // so its files share the peer's limit fairly and everything we serve shares the node's.
+    private void throttleUpload(SocketChannel channel, String filename, Path fullPath, ChunkFileWriter partialDownload,
+                                int chunkID, int chunkSize) throws IOException {
+        if (!uploadLimiter.isLimited()) {
+            return;
+        }
+        long chunkLength = 0;
+        if (partialDownload != null) {
+            chunkLength = partialDownload.hasChunk(chunkID) ? partialDownload.chunkLength(chunkID) : 0;
+        } else if (fullPath != null) {
+            SharedFileCatalog.SharedFile sharedFile = findSharedFile(filename);
+            long fileSize = sharedFile != null ? sharedFile.size : 0;
+            chunkLength = Math.max(0, Math.min(chunkSize, fileSize - (long) chunkID * chunkSize));
+        }
+        String peerIP = channel.socket().getInetAddress().getHostAddress();
+        try {
+            uploadLimiter.acquire(peerIP, peerIP + ":" + filename, chunkLength);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+        }
+    }
+
+    private void answerCatalog(SocketChannel channel, ResponseHeader header, int requestId, long sinceVersion) throws IOException {
+        byte[] changes = catalog.getChangesSince(sinceVersion).encode();
+        synchronized (header) {
+            writeFully(channel, header.start(requestId, changes.length).flip(), ByteBuffer.wrap(changes));
+        }
+    }
+
+    private void answerManifest(SocketChannel channel, ResponseHeader header, int requestId, String filename, int chunkSize) throws IOException {
+        SharedFileCatalog.SharedFile sharedFile = ChunkSizing.isValid(chunkSize) ? findSharedFile(filename) : null;
+        ChunkFileWriter partialDownload = partialDownloads.get(filename);
+        byte[] manifest = sharedFile != null ? manifests.get(sharedFile, chunkSize).encode()
+                : partialDownload != null && partialDownload.getManifest().getChunkSize() == chunkSize
+                ? partialDownload.getManifest().encode() : new byte[0];
+        synchronized (header) {
+            writeFully(channel, header.start(requestId, manifest.length).flip(), ByteBuffer.wrap(manifest));
+        }
+    }
+
+    // Only for files shared in full: a partial copy has nothing to compare an older copy with
+    private void answerChecksums(SocketChannel channel, ResponseHeader header, int requestId, String filename, int chunkSize) throws IOException {
+        SharedFileCatalog.SharedFile sharedFile = ChunkSizing.isValid(chunkSize) ? findSharedFile(filename) : null;
+        int[] checksums = sharedFile != null ? manifests.getChecksums(sharedFile, chunkSize) : new int[0];
+        ByteBuffer answer = ByteBuffer.allocate(checksums.length * Integer.BYTES);
+        answer.asIntBuffer().put(checksums);
+        synchronized (header) {
+            writeFully(channel, header.start(requestId, answer.capacity()).flip(), answer);
+        }
+    }
+
+    private void answerAvailability(SocketChannel channel, ResponseHeader header, int requestId, String filename) throws IOException {
+        ChunkFileWriter partialDownload = partialDownloads.get(filename);
+        ChunkAvailability availability = findSharedFile(filename) != null ? ChunkAvailability.COMPLETE
+                : partialDownload != null ? ChunkAvailability.partial(partialDownload.getManifest().getChunkSize(), partialDownload.getCompletedChunks())
+                : ChunkAvailability.NONE;
+        byte[] encoded = availability.encode();
+        synchronized (header) {
+            writeFully(channel, header.start(requestId, encoded.length).flip(), ByteBuffer.wrap(encoded));
+        }
+    }
+
+    // Only files shared in full are listed; one still downloading here counts as missing
+    private void answerFileInfo(SocketChannel channel, ResponseHeader header, int requestId, List<String> filenames) throws IOException {
+        ByteBuffer sizes = ByteBuffer.allocate(filenames.size() * 10);
+        for (String filename : filenames) {
+            SharedFileCatalog.SharedFile sharedFile = findSharedFile(filename);
+            WireProtocol.putVarLong(sizes, WireProtocol.zigZag(sharedFile != null ? sharedFile.size : -1));
+        }
+        sizes.flip();
+        synchronized (header) {
+            writeFully(channel, header.start(requestId, sizes.remaining()).flip(), sizes);
+        }
+    }
+
+    // Whole small files in one answer, each with its hash so the downloader can check it before keeping it.
+    // Files that are missing, too large or past MAX_PACKED_BYTES are answered as size -1 and fetched in chunks.
+    private void answerFiles(SocketChannel channel, ResponseHeader header, int requestId, List<String> filenames) throws IOException {
+        byte[][] contents = new byte[filenames.size()][];
+        int packedBytes = 0;
+        int answerLength = 0;
+        for (int i = 0; i < contents.length; i++) {
+            SharedFileCatalog.SharedFile sharedFile = findSharedFile(filenames.get(i));
+            if (sharedFile != null && sharedFile.size <= WireProtocol.MAX_PACKED_FILE_BYTES
+                    && packedBytes + sharedFile.size <= WireProtocol.MAX_PACKED_BYTES) {
+                contents[i] = readWholeFile(sharedFile.path);
+            }
+            if (contents[i] != null && packedBytes + contents[i].length <= WireProtocol.MAX_PACKED_BYTES) {
+                packedBytes += contents[i].length;
+                answerLength += WireProtocol.varLongSize(WireProtocol.zigZag(contents[i].length)) + ChunkManifest.HASH_LENGTH + contents[i].length;
+            } else {
+                contents[i] = null;
+                answerLength += WireProtocol.varLongSize(WireProtocol.zigZag(-1));
+            }
+        }
+        if (uploadLimiter.isLimited()) {
+            String peerIP = channel.socket().getInetAddress().getHostAddress();
+            try {
+                uploadLimiter.acquire(peerIP, peerIP + ":" + filenames.get(0), packedBytes); // Outside the write lock
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+            }
+        }
+
+        ByteBuffer answer = ByteBuffer.allocate(answerLength);
+        for (byte[] content : contents) {
+            WireProtocol.putVarLong(answer, WireProtocol.zigZag(content != null ? content.length : -1));
+            if (content != null) {
+                answer.put(ChunkManifest.hash(content)).put(content);
+            }
+        }
+        answer.flip();
+        synchronized (header) {
+            writeFully(channel, header.start(requestId, answerLength).flip(), answer);
+        }
+        bytesServed.add(packedBytes);
+    }
+
+    // Null if the file vanished or grew past what OP_FILES sends
+    private byte[] readWholeFile(Path path) {
+        try (FileChannelPool.Lease lease = fileChannels.acquire(path)) {
+            FileChannel fileChannel = lease.channel();
+            long size = fileChannel.size();
+            if (size > WireProtocol.MAX_PACKED_FILE_BYTES) {
+                return null;
+            }
+            ByteBuffer content = ByteBuffer.allocate((int) size);
+            while (content.hasRemaining()) {
+                if (fileChannel.read(content, content.position()) < 0) {
+                    return null; // Shrank while reading
+                }
+            }
+            return content.array();
         } catch (IOException e) {
-            e.printStackTrace(); // Handle exceptions as needed
+            return null;
+        }
+    }
+
+    private void answerEmpty(SocketChannel channel, ResponseHeader header, int requestId) throws IOException {
+        synchronized (header) {
+            writeFully(channel, header.start(requestId, 0).flip());
         }
     }
     
-    private void sendFileChunk(DataOutputStream dos, String filename, int chunkID) throws IOException {
-        Path fullPath = findFileInSharedFolder(filename);
+    // Sends a popular chunk from the chunk cache, anything else straight from the page cache
+    // to the socket (sendfile) through a pooled channel
+    private void sendFileChunk(SocketChannel channel, ResponseHeader header, int requestId, Path fullPath, int chunkID, int chunkSize,
+                               boolean acceptDeflate) throws IOException {
         if (fullPath == null) {
-            dos.writeInt(0); // Indicates that the file was not found
+            writeFully(channel, header.start(requestId, 0).flip()); // Indicates that the file was not found
             return;
         }
-        File file = fullPath.toFile();
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            long chunkStart = (long) chunkID * CHUNK_SIZE;
-            raf.seek(chunkStart);
+        try (FileChannelPool.Lease lease = fileChannels.acquire(fullPath)) {
+            FileChannel fileChannel = lease.channel();
+            ByteBuffer cachedChunk = chunkCache.get(fullPath, lease.lastModified(), fileChannel, chunkSize, chunkID);
+            if (cachedChunk != null) {
+                int chunkLength = cachedChunk.remaining();
+                writeFully(channel, startChunk(header, requestId, chunkLength, acceptDeflate).flip(), cachedChunk);
+                bytesServed.add(chunkLength);
+                return;
+            }
+            long chunkStart = (long) chunkID * chunkSize;
+            int chunkLength = (int) Math.max(0, Math.min(chunkSize, fileChannel.size() - chunkStart));
 
-            long remainingSize = raf.length() - chunkStart;
-            int bufferSize = (int) Math.min(CHUNK_SIZE, remainingSize);
-            byte[] buffer = new byte[bufferSize];
+            writeFully(channel, startChunk(header, requestId, chunkLength, acceptDeflate).flip());
 
-            int bytesRead = raf.read(buffer);
-            if (bytesRead > 0) {
-                dos.writeInt(bytesRead);
-                dos.write(buffer, 0, bytesRead);
-            } else {
-                dos.writeInt(0);
+            long position = chunkStart;
+            long end = chunkStart + chunkLength;
+            while (position < end) {
+                long sent = fileChannel.transferTo(position, end - position, channel);
+                if (sent <= 0) {
+                    throw new EOFException("File shrank while sending chunk " + chunkID + " of " + fullPath);
+                }
+                position += sent;
             }
+            bytesServed.add(chunkLength);
         }
     }
+
+    // Serves a chunk that an unfinished download already holds; an empty answer means the chunk is not here yet
+    private void sendPartialChunk(SocketChannel channel, ResponseHeader header, int requestId, ChunkFileWriter partialDownload, int chunkID,
+                                  boolean acceptDeflate) throws IOException {
+        if (zeroCopy && partialDownload.hasChunk(chunkID)) {
+            writeFully(channel, startChunk(header, requestId, partialDownload.chunkLength(chunkID), acceptDeflate).flip());
+            if (!partialDownload.transferChunk(chunkID, channel)) {
+                throw new IOException("Partial download closed while sending chunk " + chunkID); // Header already sent
+            }
+            bytesServed.add(partialDownload.chunkLength(chunkID));
+            return;
+        }
+        byte[] chunkData = partialDownload.readChunk(chunkID);
+        if (chunkData == null) {
+            writeFully(channel, header.start(requestId, 0).flip());
+            return;
+        }
+        writeFully(channel, startChunk(header, requestId, chunkData.length, acceptDeflate).flip(), ByteBuffer.wrap(chunkData));
+        bytesServed.add(chunkData.length);
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Header and body in one gathering write, so they leave in the same segment when they fit
+    private static void writeFully(SocketChannel channel, ByteBuffer header, ByteBuffer body) throws IOException {
+        ByteBuffer[] buffers = {header, body};
+        while (body.hasRemaining() || header.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    // Copies the chunk through a heap buffer; kept for comparison with the zero-copy path
+    private void sendFileChunkCopy(DataOutputStream dos, ResponseHeader header, int requestId, Path fullPath, int chunkID, int chunkSize,
+                                   boolean acceptDeflate) throws IOException {
+        byte[] buffer = new byte[0];
+        int bytesRead = 0;
+        if (fullPath != null) {
+            try (RandomAccessFile raf = new RandomAccessFile(fullPath.toFile(), "r")) {
+                long chunkStart = (long) chunkID * chunkSize;
+                raf.seek(chunkStart);
+
+                long remainingSize = raf.length() - chunkStart;
+                buffer = new byte[(int) Math.max(0, Math.min(chunkSize, remainingSize))];
+                bytesRead = Math.max(0, raf.read(buffer));
+            }
+        }
+        ByteBuffer headerBytes = (fullPath != null ? startChunk(header, requestId, bytesRead, acceptDeflate) : header.start(requestId, 0)).flip();
+        dos.write(headerBytes.array(), 0, headerBytes.limit()); // Zero length indicates that the file was not found
+        dos.write(buffer, 0, bytesRead);
+        bytesServed.add(bytesRead);
+    }
     
     private Path findFileInSharedFolder(String filename) {
-        try {
-            return Files.walk(Paths.get(sharedFolderPath))
-                        .filter(Files::isRegularFile)
-                        .filter(path -> path.getFileName().toString().equals(filename))
-                        .findFirst()
-                        .orElse(null);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
+        SharedFileCatalog.SharedFile sharedFile = findSharedFile(filename);
+        return sharedFile != null ? sharedFile.path : null;
+    }
+
+    private SharedFileCatalog.SharedFile findSharedFile(String filename) {
+        long startTime = System.nanoTime();
+        SharedFileCatalog.SharedFile sharedFile = catalog.find(filename);
+        catalogLookupLatency.observe(System.nanoTime() - startTime);
+        return sharedFile;
     }
 
     
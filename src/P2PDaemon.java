@@ -0,0 +1,113 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.List;
+
+// Headless node for servers. Run with: java P2PDaemon <config.properties>
+// Commands on standard input: peers, files, search <text>, get <file>, getall <peer IP> (everything it shares
+// that is not here yet), transfers, metrics, quit, and
+// limit upload <total> <per peer>, limit download <total> <per peer> <per transfer>, limit <transfer ID> <rate>
+// with rates in KB/s, 0 for unlimited.
+// Without a console it just keeps seeding until the process is stopped.
+public class P2PDaemon {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 1) {
+            System.err.println("Usage: java P2PDaemon <config.properties>");
+            System.exit(2);
+        }
+        Node node = new Node(Node.Config.load(Paths.get(args[0])));
+        Runtime.getRuntime().addShutdownHook(new Thread(node::stop));
+        node.start();
+        System.out.println("Sharing " + node.getConfig().sharedFolder);
+
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = console.readLine()) != null) {
+            String[] parts = line.trim().split("\\s+", 2);
+            String argument = parts.length > 1 ? parts[1] : "";
+            switch (parts[0]) {
+                case "":
+                    break;
+                case "peers":
+                    printAll(node.listPeers());
+                    break;
+                case "files":
+                    printAll(node.listLocalFiles());
+                    break;
+                case "search":
+                    printAll(node.search(argument));
+                    break;
+                case "get":
+                    node.download(argument).whenComplete((path, failure) ->
+                            System.out.println(failure == null ? "Downloaded " + path : failure.getMessage()));
+                    break;
+                case "getall":
+                    node.downloadAllFrom(argument).whenComplete((transfers, failure) -> {
+                        if (failure != null) {
+                            System.out.println(failure.getMessage());
+                            return;
+                        }
+                        long completed = transfers.stream().filter(transfer -> transfer.getState() == Transfer.State.COMPLETED).count();
+                        System.out.println("Downloaded " + completed + " of " + transfers.size() + " transfer(s) from " + argument);
+                    });
+                    break;
+                case "transfers":
+                    for (Transfer transfer : node.getTransferManager().getTransfers()) {
+                        System.out.println(transfer.getId() + " " + transfer.getFileName() + " " + transfer.getState() + " " + transfer.getMessage());
+                    }
+                    break;
+                case "metrics":
+                    System.out.print(node.getMetrics().toPrometheusText());
+                    break;
+                case "limit":
+                    setLimit(node, argument.split("\\s+"));
+                    break;
+                case "quit":
+                    System.exit(0); // The shutdown hook stops the node
+                    break;
+                default:
+                    System.out.println("Unknown command: " + parts[0]);
+            }
+        }
+
+        // Standard input is closed, e.g. when started by a service manager: keep seeding
+        Thread.currentThread().join();
+    }
+
+    private static void setLimit(Node node, String[] arguments) {
+        try {
+            long[] rates = new long[arguments.length - 1];
+            for (int i = 0; i < rates.length; i++) {
+                rates[i] = Long.parseLong(arguments[i + 1]) * 1024;
+            }
+            if (arguments[0].equals("upload") && rates.length == 2) {
+                node.setUploadLimits(rates[0], rates[1]);
+            } else if (arguments[0].equals("download") && rates.length == 3) {
+                node.setDownloadLimits(rates[0], rates[1], rates[2]);
+            } else if (rates.length == 1) {
+                int transferId = Integer.parseInt(arguments[0]);
+                Transfer transfer = node.getTransferManager().getTransfers().stream()
+                        .filter(candidate -> candidate.getId() == transferId).findFirst().orElse(null);
+                if (transfer == null) {
+                    System.out.println("No transfer " + transferId);
+                    return;
+                }
+                transfer.setRateLimit(rates[0]);
+            } else {
+                System.out.println("Usage: limit upload <total> <per peer> | limit download <total> <per peer> <per transfer> | limit <transfer ID> <rate>");
+                return;
+            }
+            System.out.println("Limit set");
+        } catch (NumberFormatException e) {
+            System.out.println("Rates are whole KB/s: " + e.getMessage());
+        }
+    }
+
+    private static void printAll(List<String> lines) {
+        for (String line : lines) {
+            System.out.println(line);
+        }
+    }
+}
@@ -1,6 +1,4 @@
 import javax.swing.*;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.Utilities;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -10,7 +8,6 @@ import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -20,25 +17,19 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.List;
 
-public class P2PGUI extends JFrame implements NodeDiscoveryListener {
+// Thin client over Node: everything it shows comes from the node's registry and transfer manager
+public class P2PGUI extends JFrame {
 
     private JTextField folderLocationField;
     private JTextField sharedSecretField;
-    private JTextArea textAreaComputers;
-    private JTextArea textAreaTransfers;
-    private JTextArea textAreaFiles;
-    private NodeThread node;
+    private NetworkViewModel networkViewModel;
+    private TransferTableModel transferTableModel;
+    private Node node;
     private Set<String> selectedSharedFolders = new HashSet<>();
 
     public P2PGUI() {
@@ -125,8 +116,23 @@ public class P2PGUI extends JFrame implements NodeDiscoveryListener {
         }
 
         openSharedFoldersFrame(() -> {
-            // Start Node Thread with the specified folder location, shared secret key, and selected folders
-            node = new NodeThread(folderLocation, sharedSecret, selectedSharedFolders, this);
+            // Start the node with the specified folder location, shared secret key, and selected folders
+            Node.Config config = new Node.Config(folderLocation, sharedSecret);
+            config.sharedSubfolders.addAll(selectedSharedFolders);
+            node = new Node(config);
+            networkViewModel = new NetworkViewModel(node::hasLocalFile);
+            transferTableModel = new TransferTableModel();
+
+            // Registry changes and transfer progress arrive on background threads and are applied on the event thread
+            node.getPeerRegistry().addListener(peer -> SwingUtilities.invokeLater(() -> networkViewModel.apply(peer)));
+            node.getTransferManager().addListener(updates -> SwingUtilities.invokeLater(() -> {
+                transferTableModel.apply(updates);
+                for (Transfer.Progress progress : updates) {
+                    if (progress.state == Transfer.State.COMPLETED) {
+                        networkViewModel.hideFile(progress.fileName);
+                    }
+                }
+            }));
             node.start();
 
             // After selecting folders, open the main frame and close the current frame
@@ -154,27 +160,26 @@ public class P2PGUI extends JFrame implements NodeDiscoveryListener {
         JMenuItem connectButton = new JMenuItem("Connect");
         connectButton.addActionListener(e -> {
             if (node != null) {
-                node.startBroadcasting();
+                node.connect();
+                networkViewModel.reload(node.getPeerRegistry().snapshot());
             }
         });
         fileMenu.add(connectButton);
         JMenuItem disconnectButton = new JMenuItem("Disconnect");
         disconnectButton.addActionListener(e -> {
             if (node != null) {
-            	node.stopBroadcasting();
-            	node.sendDisconnectionMessage();
+                node.disconnect();
+                node.getTransferManager().clearFinished();
             }
-            textAreaComputers.setText("");
-            textAreaFiles.setText("");
-            textAreaTransfers.setText("");
+            networkViewModel.clear();
+            transferTableModel.clearFinished();
         });
         fileMenu.add(disconnectButton);
         JMenuItem exitButton = new JMenuItem("Exit");
         fileMenu.add(exitButton);
         exitButton.addActionListener(e -> {
             if (node != null) {
-            	node.stopBroadcasting();
-            	node.sendDisconnectionMessage();
+                node.stop();
             }
             mainScreenFrame.dispose();
         });
@@ -232,37 +237,41 @@ public class P2PGUI extends JFrame implements NodeDiscoveryListener {
 	    computerHostnameLabel.setBounds(10, 410, 260, 20);
 	    computerIPLabel.setBounds(280, 410, 240, 20);
 	    
-	    // Create text areas
-	    textAreaTransfers = new JTextArea();
-	    textAreaComputers = new JTextArea();
-	    textAreaFiles = new JTextArea();
-	    textAreaFiles.addMouseListener(new MouseAdapter() {
+	    // Lists only render the visible rows, so they stay responsive with many peers and files
+	    JTable tableTransfers = new JTable(transferTableModel);
+	    JList<String> listComputers = new JList<>(networkViewModel.getPeersModel());
+	    JList<String> listFiles = new JList<>(networkViewModel.getFilesModel());
+	    listComputers.setPrototypeCellValue("255.255.255.255");
+	    listFiles.setPrototypeCellValue("A typical shared file name.ext");
+	    listFiles.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+	    listFiles.addMouseListener(new MouseAdapter() {
 	        @Override
 	        public void mouseClicked(MouseEvent e) {
 	            if (e.getClickCount() == 2) {
-	                try {
-	                    int index = textAreaFiles.viewToModel2D(e.getPoint());
-	                    int rowStart = Utilities.getRowStart(textAreaFiles, index);
-	                    int rowEnd = Utilities.getRowEnd(textAreaFiles, index);
-	                    String selectedFile = textAreaFiles.getText().substring(rowStart, rowEnd).trim();
-	                    onFileDoubleClick(selectedFile);
-	                } catch (BadLocationException ex) {
-	                    ex.printStackTrace();
+	                int index = listFiles.locationToIndex(e.getPoint());
+	                if (index >= 0 && listFiles.getCellBounds(index, index).contains(e.getPoint())) {
+	                    onFileDoubleClick(listFiles.getModel().getElementAt(index), listFiles.getSelectedValuesList());
+	                }
+	            }
+	        }
+	    });
+	    listComputers.setToolTipText("Double-click a computer to download everything it shares");
+	    listComputers.addMouseListener(new MouseAdapter() {
+	        @Override
+	        public void mouseClicked(MouseEvent e) {
+	            if (e.getClickCount() == 2) {
+	                int index = listComputers.locationToIndex(e.getPoint());
+	                if (index >= 0 && listComputers.getCellBounds(index, index).contains(e.getPoint())) {
+	                    node.downloadAllFrom(listComputers.getModel().getElementAt(index));
 	                }
 	            }
 	        }
 	    });
 
-	    
-	    // Make text areas non-editable if desired
-	    textAreaComputers.setEditable(false);
-	    textAreaFiles.setEditable(false);
-	    textAreaTransfers.setEditable(false);
-
-	    // Create scroll panes for each text area
-	    JScrollPane scrollPaneComputers = new JScrollPane(textAreaComputers);
-	    JScrollPane scrollPaneFiles = new JScrollPane(textAreaFiles);
-	    JScrollPane scrollPaneTransfers = new JScrollPane(textAreaTransfers);
+	    // Create scroll panes for each view
+	    JScrollPane scrollPaneComputers = new JScrollPane(listComputers);
+	    JScrollPane scrollPaneFiles = new JScrollPane(listFiles);
+	    JScrollPane scrollPaneTransfers = new JScrollPane(tableTransfers);
 
 	    // Set vertical and horizontal scroll bar policies
 	    scrollPaneComputers.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
@@ -282,8 +291,7 @@ public class P2PGUI extends JFrame implements NodeDiscoveryListener {
             @Override
             public void windowClosing(WindowEvent e) {
                 if (node != null) {
-                	node.stopBroadcasting();
-                	node.sendDisconnectionMessage();
+                    node.stop();
                 }
                 mainScreenFrame.dispose();
             }
@@ -307,140 +315,13 @@ public class P2PGUI extends JFrame implements NodeDiscoveryListener {
 	    mainScreenFrame.setVisible(true);
     }
     
-    @Override
-    public void onNodeDiscovered(String ipAddress) {
-        SwingUtilities.invokeLater(() -> {
-        	
-            if (!textAreaComputers.getText().contains(ipAddress) ) {
-                textAreaComputers.append(ipAddress + "\n");
-            }
-        });
-        
-        updateFileListDisplay();
-    }
-    
-    @Override
-    public void onNodeDisconnected(String ipAddress) {
-        SwingUtilities.invokeLater(() -> {
-            String currentText = textAreaComputers.getText();
-            String updatedText = currentText.replaceAll(ipAddress + "\n", "");
-            textAreaComputers.setText(updatedText);
-        });
-        removeDisconnectedNodeFiles(ipAddress);
-    }
-
-    private void removeDisconnectedNodeFiles(String disconnectedNodeIP) {
-        List<String> disconnectedNodeFiles = node.filesByNode.getOrDefault(disconnectedNodeIP, Collections.emptyList());
-
-        String currentText = textAreaFiles.getText();
-        
-        for (String file : disconnectedNodeFiles) {
-            if (!isFileSharedByActiveNodes(file, disconnectedNodeIP)) {
-                String fileToRemove = file.trim() + "\n";
-                currentText = currentText.replaceAll(fileToRemove, "");
-            }
-        }
-        
-        final String updatedText = currentText; // Make it final for use inside SwingUtilities.invokeLater
-
-        SwingUtilities.invokeLater(() -> {
-            textAreaFiles.setText(updatedText);
-        });
-    }
-
-
-    private boolean isFileSharedByActiveNodes(String file, String disconnectedNodeIP) {
-        for (Map.Entry<String, Boolean> entry : node.nodeConnectionStatus.entrySet()) {
-            String nodeIP = entry.getKey();
-            Boolean isActive = entry.getValue();
-
-            if (!nodeIP.equals(disconnectedNodeIP) && isActive && node.filesByNode.getOrDefault(nodeIP, Collections.emptyList()).contains(file)) {
-                return true;
-            }
-        }
-        return false;
-    }
-      
-    private void updateFileListDisplay() {
-        // Retrieve local files list for comparison
-        List<String> localFiles = node.findAllFilesInSharedFolder();
-
-        textAreaFiles.setText(""); // Clear existing text
-        for (Map.Entry<String, List<String>> entry : node.filesByNode.entrySet()) {
-        	String nodeIP = entry.getKey();
-        	if (node.nodeConnectionStatus.getOrDefault(nodeIP, false)) {
-            	for (String file : entry.getValue()) {
-                    String trimmedFile = file.trim(); // Remove any leading/trailing whitespace, including newline characters
-                    boolean isLocal = localFiles.contains(trimmedFile);
-                    
-                    if (!isLocal && !textAreaFiles.getText().contains(trimmedFile + "\n")) {
-                        textAreaFiles.append(trimmedFile + "\n");
-                    }
-                }	
-        	}
-        }
-    }
-    
-    private void onFileDoubleClick(String fileName) {
-        List<String> nodesWithFile = new ArrayList<>();
-        for (Map.Entry<String, List<String>> entry : node.filesByNode.entrySet()) {
-            String nodeIP = entry.getKey();
-            List<String> nodeFiles = entry.getValue();
-            Boolean isActive = node.nodeConnectionStatus.getOrDefault(nodeIP, false);
-            if (isActive && nodeFiles.stream().anyMatch(file -> file.trim().equals(fileName.trim()))) {
-                nodesWithFile.add(nodeIP);
-            }
-        }
-
-        if (!nodesWithFile.isEmpty()) {
-            int fileSize = node.requestFileSize(fileName, nodesWithFile.get(0)); // Request file size from the first node
-            int chunkCount = (int) Math.ceil((double) fileSize / 512000.0D);
-            byte[][] fileChunks = new byte[chunkCount][];
-            AtomicLong totalBytesReceived = new AtomicLong(0); // Thread-safe long for counting bytes
-
-            ExecutorService executor = Executors.newFixedThreadPool(nodesWithFile.size());
-
-            for (int i = 0; i < chunkCount; i++) {
-                int chunkID = i;
-                String nodeIP = nodesWithFile.get(i % nodesWithFile.size()); // Round-robin selection of nodes
-
-                executor.submit(() -> {
-                    byte[] chunkData = node.requestFileChunk(fileName, nodeIP, chunkID);
-                    synchronized (fileChunks) {
-                        fileChunks[chunkID] = chunkData; // Store chunk in the correct order
-                        long received = totalBytesReceived.addAndGet(chunkData.length); // Update total bytes received
-
-                        // Calculate percentage and convert to KB
-                        double percentage = 100.0 * received / fileSize;
-                        long receivedKB = received / 1024;
-                        long totalKB = fileSize / 1024;
-
-                        SwingUtilities.invokeLater(() -> textAreaTransfers.append(
-                            "Chunk #" + (chunkID + 1) + " received from " + nodeIP + 
-                            ". Received: " + receivedKB + " KB / " + totalKB + " KB " +
-                            "(" + String.format("%.2f", percentage) + "%)\n"
-                        ));
-                    }
-                });
-            }
-
-            executor.shutdown();
-            try {
-                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-                try (FileOutputStream fileOutputStream = new FileOutputStream(node.sharedFolderPath + File.separator + fileName)) {
-                    for (byte[] chunk : fileChunks) {
-                        if (chunk != null) {
-                            fileOutputStream.write(chunk);
-                        }
-                    }
-                    SwingUtilities.invokeLater(() -> textAreaTransfers.append("File download completed: " + fileName + "\n"));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    SwingUtilities.invokeLater(() -> textAreaTransfers.append("Error writing file: " + e.getMessage() + "\n"));
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    // The download runs on the transfer manager's threads; its progress shows up in the transfers table.
+    // Double-clicking one of several selected files downloads the whole selection.
+    private void onFileDoubleClick(String fileName, List<String> selectedFiles) {
+        if (selectedFiles.size() > 1 && selectedFiles.contains(fileName)) {
+            node.downloadAll(selectedFiles);
+        } else {
+            node.download(fileName);
         }
     }
 
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// One persistent session per peer IP, reopened when the peer drops.
+// Peers that turn out to predate sessions are remembered so callers can fall back to one request per connection.
+public class PeerConnectionPool {
+    private static final int MAX_ATTEMPTS = 2; // A dropped session is retried once on a fresh connection
+    private static final long RESPONSE_TIMEOUT_SECONDS = 30;
+    public static final long HASHING_TIMEOUT_SECONDS = 600; // For answers the peer may have to read a whole file for
+
+    private final int port;
+    private final ConcurrentHashMap<String, PeerSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> connectLocks = new ConcurrentHashMap<>();
+    private final Set<String> legacyPeers = ConcurrentHashMap.newKeySet();
+
+    public PeerConnectionPool(int port) {
+        this.port = port;
+    }
+
+    public PeerSession session(String peerIP) throws IOException {
+        PeerSession session = sessions.get(peerIP);
+        if (session != null && session.isOpen()) {
+            return session;
+        }
+        synchronized (connectLocks.computeIfAbsent(peerIP, k -> new Object())) {
+            session = sessions.get(peerIP);
+            if (session == null || !session.isOpen()) {
+                if (legacyPeers.contains(peerIP)) {
+                    throw new PeerSession.LegacyPeerException(peerIP);
+                }
+                try {
+                    session = PeerSession.open(peerIP, port);
+                } catch (PeerSession.LegacyPeerException e) {
+                    legacyPeers.add(peerIP);
+                    throw e;
+                }
+                sessions.put(peerIP, session);
+            }
+            return session;
+        }
+    }
+
+    // Sends one request on a session, e.g. session -> session.requestChunk(...)
+    public interface Request {
+        CompletableFuture<byte[]> send(PeerSession session);
+    }
+
+    public byte[] request(String peerIP, String requestMessage) throws IOException {
+        return request(peerIP, session -> session.send(requestMessage));
+    }
+
+    // Sends a request and waits for its response, reconnecting once if the session was lost.
+    // A slow answer only fails its own request: others pipelined on the session keep waiting for theirs,
+    // and the session is only replaced once its connection has actually failed.
+    public byte[] request(String peerIP, Request request) throws IOException {
+        return request(peerIP, request, RESPONSE_TIMEOUT_SECONDS);
+    }
+
+    public byte[] request(String peerIP, Request request, long timeoutSeconds) throws IOException {
+        IOException lastFailure = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            PeerSession session = session(peerIP);
+            CompletableFuture<byte[]> response = request.send(session);
+            try {
+                return response.get(timeoutSeconds, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                lastFailure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                discard(session);
+            } catch (TimeoutException e) {
+                session.abandon(response);
+                throw new IOException("Timed out waiting for " + peerIP, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for " + peerIP, e);
+            }
+        }
+        throw lastFailure;
+    }
+
+    // Sends the chunk requests in one frame and waits for every answer; a chunk that did not arrive is null.
+    // Not retried here: the caller hands missing chunks to other peers.
+    public byte[][] requestChunks(String peerIP, String fileName, int chunkSize, int[] chunkIDs, boolean acceptDeflate) throws IOException {
+        PeerSession session = session(peerIP);
+        List<CompletableFuture<byte[]>> responses = session.requestChunks(fileName, chunkSize, chunkIDs, acceptDeflate);
+        byte[][] chunks = new byte[chunkIDs.length][];
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RESPONSE_TIMEOUT_SECONDS);
+        for (int i = 0; i < chunks.length; i++) {
+            try {
+                chunks[i] = responses.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                discard(session);
+            } catch (TimeoutException e) {
+                session.abandon(responses.get(i)); // Handed to other peers; the session stays for the chunks still coming
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for " + peerIP, e);
+            }
+        }
+        return chunks;
+    }
+
+    // Protocol version spoken with the peer: 0 for legacy peers, -1 if not known yet
+    public int getProtocolVersion(String peerIP) {
+        if (legacyPeers.contains(peerIP)) {
+            return 0;
+        }
+        PeerSession session = sessions.get(peerIP);
+        return session != null ? session.getProtocolVersion() : -1;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public void disconnect(String peerIP) {
+        legacyPeers.remove(peerIP); // The peer may come back upgraded
+        PeerSession session = sessions.remove(peerIP);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    public void closeAll() {
+        for (String peerIP : sessions.keySet()) {
+            disconnect(peerIP);
+        }
+    }
+
+    private void discard(PeerSession session) {
+        session.close();
+        sessions.remove(session.getPeerIP(), session);
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Decides which peers are alive and which are worth asking for data.
+// Beacons keep a peer alive: every peer has one entry on a hashed timing wheel at its expiry tick, and a
+// beacon only moves the deadline, so the entry is rescheduled lazily when its slot comes round. A peer whose
+// deadline passes is reported expired. Transfers report round-trip times, throughput and failures; a peer
+// that fails several requests in a row is skipped for a cool-down period instead of waiting on connect timeouts.
+public class PeerLivenessTracker {
+    private static final long TICK_MILLIS = 500;
+    private static final int WHEEL_SLOTS = 128; // Must cover the expiry timeout in ticks
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long FAILURE_COOLDOWN_MILLIS = 30_000;
+    private static final double RTT_SMOOTHING = 0.2; // Weight of the newest sample in the RTT and throughput averages
+    private static final int MIN_THROUGHPUT_SAMPLE_BYTES = 64 * 1024; // Smaller answers measure latency, larger ones bandwidth
+
+    public interface ExpiryListener {
+        void onPeerExpired(String peerIP);
+    }
+
+    public static class PeerHealth {
+        private double rttMillis = -1; // -1 until the first small response
+        private double bytesPerSecond = 0; // Throughput of one request; 0 until the first large response
+        private int consecutiveFailures = 0;
+        private long lastFailureMillis = 0;
+
+        public synchronized double getRttMillis() {
+            return rttMillis;
+        }
+
+        public synchronized double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        synchronized void recordSuccess(long elapsedNanos, int responseBytes) {
+            if (responseBytes < MIN_THROUGHPUT_SAMPLE_BYTES) {
+                double sample = elapsedNanos / 1e6;
+                rttMillis = rttMillis < 0 ? sample : RTT_SMOOTHING * sample + (1 - RTT_SMOOTHING) * rttMillis;
+            } else {
+                double sample = responseBytes * 1e9 / Math.max(1, elapsedNanos);
+                bytesPerSecond = bytesPerSecond == 0 ? sample : RTT_SMOOTHING * sample + (1 - RTT_SMOOTHING) * bytesPerSecond;
+            }
+            consecutiveFailures = 0;
+        }
+
+        synchronized void recordFailure() {
+            consecutiveFailures++;
+            lastFailureMillis = System.currentTimeMillis();
+        }
+
+        // After the cool-down one request is let through again; its result decides what happens next
+        synchronized boolean isDegraded() {
+            return consecutiveFailures >= MAX_CONSECUTIVE_FAILURES
+                    && System.currentTimeMillis() - lastFailureMillis < FAILURE_COOLDOWN_MILLIS;
+        }
+    }
+
+    private final long timeoutTicks;
+    private final ExpiryListener listener;
+    private final ConcurrentHashMap<String, PeerHealth> health = new ConcurrentHashMap<>();
+    private final Set<String> expiredPeers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PeerLivenessTracker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by "this"
+    private final List<List<String>> wheel = new ArrayList<>(WHEEL_SLOTS);
+    private final Map<String, Long> deadlines = new HashMap<>(); // Peer -> tick at which it expires
+    private final Map<String, Integer> wheelSlots = new HashMap<>(); // Peer -> slot its one wheel entry is in
+    private final long startNanos = System.nanoTime();
+    private long currentTick = 0;
+    private boolean started = false;
+
+    public PeerLivenessTracker(long beaconIntervalMillis, int missedBeaconsBeforeExpiry, ExpiryListener listener) {
+        // One extra interval of slack for jitter and late datagrams
+        long timeoutMillis = beaconIntervalMillis * (missedBeaconsBeforeExpiry + 1);
+        this.timeoutTicks = Math.min(WHEEL_SLOTS - 1, (timeoutMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        this.listener = listener;
+        for (int slot = 0; slot < WHEEL_SLOTS; slot++) {
+            wheel.add(new ArrayList<>());
+        }
+    }
+
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            ticker.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    // Called for every beacon from the peer
+    public synchronized void heartbeat(String peerIP) {
+        long deadline = currentTick + timeoutTicks;
+        if (deadlines.put(peerIP, deadline) == null) {
+            enqueue(peerIP, deadline);
+        }
+        expiredPeers.remove(peerIP);
+    }
+
+    // The peer said goodbye; it is neither alive nor expired any more
+    public synchronized void forget(String peerIP) {
+        deadlines.remove(peerIP);
+        Integer slot = wheelSlots.remove(peerIP);
+        if (slot != null) {
+            wheel.get(slot).remove(peerIP); // Otherwise a peer that rejoins would have two entries
+        }
+        expiredPeers.remove(peerIP);
+        health.remove(peerIP);
+    }
+
+    public boolean isExpired(String peerIP) {
+        return expiredPeers.contains(peerIP);
+    }
+
+    public void recordSuccess(String peerIP, long elapsedNanos, int responseBytes) {
+        healthOf(peerIP).recordSuccess(elapsedNanos, responseBytes);
+    }
+
+    public void recordFailure(String peerIP) {
+        healthOf(peerIP).recordFailure();
+    }
+
+    public boolean isUsable(String peerIP) {
+        PeerHealth peerHealth = health.get(peerIP);
+        return !isExpired(peerIP) && (peerHealth == null || !peerHealth.isDegraded());
+    }
+
+    public PeerHealth getHealth(String peerIP) {
+        return health.get(peerIP);
+    }
+
+    // Usable peers first, fastest round trip first; unusable peers are only kept when nothing else is left
+    public List<String> rankPeers(List<String> peerIPs) {
+        List<String> usable = new ArrayList<>();
+        List<String> unusable = new ArrayList<>();
+        for (String peerIP : peerIPs) {
+            (isUsable(peerIP) ? usable : unusable).add(peerIP);
+        }
+        Comparator<String> byRtt = Comparator.comparingDouble(peerIP -> {
+            PeerHealth peerHealth = health.get(peerIP);
+            double rtt = peerHealth != null ? peerHealth.getRttMillis() : -1;
+            return rtt < 0 ? Double.MAX_VALUE : rtt; // Unmeasured peers go last among their group
+        });
+        usable.sort(byRtt);
+        if (!usable.isEmpty()) {
+            return usable;
+        }
+        unusable.sort(byRtt);
+        return unusable;
+    }
+
+    private PeerHealth healthOf(String peerIP) {
+        return health.computeIfAbsent(peerIP, k -> new PeerHealth());
+    }
+
+    private void enqueue(String peerIP, long deadline) {
+        int slot = (int) (deadline % WHEEL_SLOTS);
+        wheel.get(slot).add(peerIP);
+        wheelSlots.put(peerIP, slot);
+    }
+
+    private void tick() {
+        List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            // Catch up on ticks the scheduler missed, e.g. after a long GC pause
+            long targetTick = (System.nanoTime() - startNanos) / TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+            while (currentTick < targetTick) {
+                currentTick++;
+                List<String> slot = wheel.get((int) (currentTick % WHEEL_SLOTS));
+                if (slot.isEmpty()) {
+                    continue;
+                }
+                List<String> due = new ArrayList<>(slot);
+                slot.clear();
+                for (String peerIP : due) {
+                    long deadline = deadlines.get(peerIP); // Every wheel entry has one; forget() removes both
+                    if (deadline > currentTick) {
+                        enqueue(peerIP, deadline); // Heard from since; move to the new deadline
+                    } else {
+                        deadlines.remove(peerIP);
+                        wheelSlots.remove(peerIP);
+                        expiredPeers.add(peerIP);
+                        expired.add(peerIP);
+                    }
+                }
+            }
+        }
+        for (String peerIP : expired) {
+            try {
+                listener.onPeerExpired(peerIP);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
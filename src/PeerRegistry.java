@@ -0,0 +1,278 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Known peers and the files they share, written by the discovery threads and read from anywhere.
+// Every peer's entry is an immutable PeerInfo that is swapped as a whole, under a lock striped by IP,
+// so readers never see a half-applied catalog and writers for different peers do not contend.
+// An inverted index maps every file name to the peers holding it.
+public class PeerRegistry {
+    private static final int LOCK_STRIPES = 32;
+
+    public static class PeerInfo {
+        public final String ip;
+        public final boolean active;
+        public final Set<String> files; // Unmodifiable
+        public final long version; // Grows with every change to this peer
+        public final long previousVersion; // Version of the entry this one replaced, 0 if none
+        public final Set<String> added; // Files gained since previousVersion
+        public final Set<String> removed; // Files lost since previousVersion
+
+        PeerInfo(String ip, boolean active, Set<String> files, long version, long previousVersion, Set<String> added, Set<String> removed) {
+            this.ip = ip;
+            this.active = active;
+            this.files = files;
+            this.version = version;
+            this.previousVersion = previousVersion;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    // Called on the writing thread after every change; a removed peer is reported as inactive with no files.
+    // Changes to different peers may arrive out of order, so listeners compare versions per peer.
+    public interface ChangeListener {
+        void onPeerChanged(PeerInfo peer);
+    }
+
+    // Copy of the peer map taken after the given version was reached. The live map is copied while other
+    // stripes may still be writing, so the copy is weakly consistent: it holds every change up to that version
+    // and possibly some later ones, but never changes once taken.
+    public static class Snapshot {
+        public final long version;
+        public final Map<String, PeerInfo> peers; // Unmodifiable, by IP
+
+        Snapshot(long version, Map<String, PeerInfo> peers) {
+            this.version = version;
+            this.peers = peers;
+        }
+
+        public List<String> getActivePeers() {
+            List<String> activePeers = new ArrayList<>();
+            for (PeerInfo peer : peers.values()) {
+                if (peer.active) {
+                    activePeers.add(peer.ip);
+                }
+            }
+            return activePeers;
+        }
+
+        // Every file shared by at least one active peer
+        public Set<String> getAvailableFiles() {
+            Set<String> files = new LinkedHashSet<>();
+            for (PeerInfo peer : peers.values()) {
+                if (peer.active) {
+                    files.addAll(peer.files);
+                }
+            }
+            return files;
+        }
+    }
+
+    private final ConcurrentHashMap<String, PeerInfo> peers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> peersByFile = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong version = new AtomicLong();
+    private final CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyMap());
+
+    public PeerRegistry() {
+        for (int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+            locks[stripe] = new Object();
+        }
+    }
+
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void markActive(String ip) {
+        PeerInfo changed = null;
+        synchronized (lockFor(ip)) {
+            PeerInfo peer = peers.get(ip);
+            if (peer == null || !peer.active) {
+                changed = put(ip, peer, true, peer != null ? peer.files : Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+            }
+        }
+        fireChanged(changed);
+    }
+
+    // The peer's files stay indexed, so they come back at once if the peer returns with the same catalog
+    public void markInactive(String ip) {
+        PeerInfo changed = null;
+        synchronized (lockFor(ip)) {
+            PeerInfo peer = peers.get(ip);
+            if (peer != null && peer.active) {
+                changed = put(ip, peer, false, peer.files, Collections.emptySet(), Collections.emptySet());
+            }
+        }
+        fireChanged(changed);
+    }
+
+    public void replaceFiles(String ip, Collection<String> files) {
+        applyChanges(ip, true, files, Collections.emptySet());
+    }
+
+    // Applies a catalog delta atomically; with "full", added is the peer's whole listing
+    public void applyChanges(String ip, boolean full, Collection<String> added, Collection<String> removed) {
+        PeerInfo changed;
+        synchronized (lockFor(ip)) {
+            PeerInfo peer = peers.get(ip);
+            Set<String> oldFiles = peer != null ? peer.files : Collections.emptySet();
+            Set<String> addedFiles = new LinkedHashSet<>();
+            for (String file : added) {
+                String trimmed = file.trim();
+                if (!trimmed.isEmpty()) {
+                    addedFiles.add(trimmed);
+                }
+            }
+
+            // Work out what actually changed from the delta alone, so a small change to a big catalog stays cheap
+            Set<String> gainedFiles = new LinkedHashSet<>();
+            for (String file : addedFiles) {
+                if (!oldFiles.contains(file)) {
+                    gainedFiles.add(file);
+                }
+            }
+            Set<String> droppedFiles = new LinkedHashSet<>();
+            if (full) {
+                for (String file : oldFiles) {
+                    if (!addedFiles.contains(file)) {
+                        droppedFiles.add(file);
+                    }
+                }
+            } else {
+                for (String file : removed) {
+                    String trimmed = file.trim();
+                    if (oldFiles.contains(trimmed) && !addedFiles.contains(trimmed)) {
+                        droppedFiles.add(trimmed);
+                    }
+                }
+            }
+            if (peer != null && gainedFiles.isEmpty() && droppedFiles.isEmpty()) {
+                return; // Nothing to publish
+            }
+
+            Set<String> newFiles = new LinkedHashSet<>(oldFiles);
+            newFiles.removeAll(droppedFiles);
+            newFiles.addAll(gainedFiles);
+            for (String file : gainedFiles) {
+                // Added inside compute: a removal on another stripe could otherwise drop the set between lookup and add
+                peersByFile.compute(file, (k, holders) -> {
+                    holders = holders != null ? holders : ConcurrentHashMap.newKeySet();
+                    holders.add(ip);
+                    return holders;
+                });
+            }
+            applyRemoval(ip, droppedFiles);
+            changed = put(ip, peer, peer == null || peer.active, Collections.unmodifiableSet(newFiles),
+                    Collections.unmodifiableSet(gainedFiles), Collections.unmodifiableSet(droppedFiles));
+        }
+        fireChanged(changed);
+    }
+
+    public void remove(String ip) {
+        PeerInfo changed = null;
+        synchronized (lockFor(ip)) {
+            PeerInfo peer = peers.remove(ip);
+            if (peer != null) {
+                applyRemoval(ip, peer.files);
+                changed = new PeerInfo(ip, false, Collections.emptySet(), version.incrementAndGet(), peer.version, Collections.emptySet(), peer.files);
+            }
+        }
+        fireChanged(changed);
+    }
+
+    public PeerInfo get(String ip) {
+        return peers.get(ip);
+    }
+
+    public boolean isActive(String ip) {
+        PeerInfo peer = peers.get(ip);
+        return peer != null && peer.active;
+    }
+
+    public Set<String> getFiles(String ip) {
+        PeerInfo peer = peers.get(ip);
+        return peer != null ? peer.files : Collections.emptySet();
+    }
+
+    // Active peers sharing the file; one index lookup instead of a scan over every peer
+    public List<String> findPeersWithFile(String fileName) {
+        Set<String> holders = peersByFile.get(fileName.trim());
+        if (holders == null) {
+            return Collections.emptyList();
+        }
+        List<String> activeHolders = new ArrayList<>();
+        for (String ip : holders) {
+            if (isActive(ip)) {
+                activeHolders.add(ip);
+            }
+        }
+        return activeHolders;
+    }
+
+    public boolean isSharedByActivePeer(String fileName, String excludedIP) {
+        for (String ip : findPeersWithFile(fileName)) {
+            if (!ip.equals(excludedIP)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Rebuilt only when something changed since the last call; the result never changes under the caller
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        long currentVersion = version.get();
+        if (current.version == currentVersion) {
+            return current;
+        }
+        Map<String, PeerInfo> copy = new LinkedHashMap<>(peers);
+        current = new Snapshot(currentVersion, Collections.unmodifiableMap(copy));
+        snapshot = current;
+        return current;
+    }
+
+    // The entry is in the map before the version moves past it, so a snapshot never misses a version it claims
+    private PeerInfo put(String ip, PeerInfo previous, boolean active, Set<String> files, Set<String> added, Set<String> removed) {
+        PeerInfo peer = new PeerInfo(ip, active, files, version.get() + 1, previous != null ? previous.version : 0, added, removed);
+        peers.put(ip, peer);
+        version.incrementAndGet();
+        return peer;
+    }
+
+    private void fireChanged(PeerInfo peer) {
+        if (peer == null) {
+            return;
+        }
+        for (ChangeListener listener : listeners) {
+            listener.onPeerChanged(peer);
+        }
+    }
+
+    private void applyRemoval(String ip, Set<String> files) {
+        for (String file : files) {
+            peersByFile.computeIfPresent(file, (k, holders) -> {
+                holders.remove(ip);
+                return holders.isEmpty() ? null : holders;
+            });
+        }
+    }
+
+    private Object lockFor(String ip) {
+        return locks[(ip.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+}
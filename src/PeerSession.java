@@ -0,0 +1,335 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Long-lived connection to one peer that carries many pipelined requests.
+// Every request is tagged with an ID so the peer can answer them in any order.
+public class PeerSession implements Closeable {
+    public static final String SESSION_REQUEST = "SessionRequest";
+    // 1: sessions with request IDs. 2: 64-bit file sizes everywhere and a version reply to the session request.
+    // 3: manifest and chunk requests name their chunk size. 4: binary frames (see WireProtocol) and batched chunk requests.
+    // 5: OP_HAVE, which chunks of an unfinished download a peer can already serve.
+    // 6: OP_FILE_INFO and OP_FILES, the sizes and the contents of many small files in one request each.
+    // 7: chunk requests may accept deflated answers (WireProtocol.ACCEPTS_DEFLATE).
+    // 8: OP_CHECKSUMS, the rolling checksums that let a downloader reuse an older copy (see DeltaSync).
+    public static final int PROTOCOL_VERSION = 8;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    // The peer predates sessions; it closes the connection instead of answering the session request
+    public static class LegacyPeerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LegacyPeerException(String peerIP) {
+            super(peerIP + " does not support sessions");
+        }
+    }
+
+    private final String peerIP;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<byte[]>> pendingRequests = new ConcurrentHashMap<>();
+    private volatile IOException failure; // Set once the session is closed
+    private ByteBuffer frame = ByteBuffer.allocate(1024); // Guarded by "out"; every binary request is framed in it
+    private int protocolVersion;
+
+    private PeerSession(String peerIP, Socket socket) throws IOException {
+        this.peerIP = peerIP;
+        this.socket = socket;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    public static PeerSession open(String peerIP, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(peerIP, port), CONNECT_TIMEOUT_MILLIS);
+            PeerSession session = new PeerSession(peerIP, socket);
+            session.out.writeUTF(SESSION_REQUEST + ":" + PROTOCOL_VERSION);
+            session.out.flush();
+
+            // The peer answers with the version both sides will speak
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            try {
+                session.protocolVersion = session.in.readInt();
+            } catch (EOFException e) {
+                throw new LegacyPeerException(peerIP);
+            }
+            socket.setSoTimeout(0);
+
+            Thread reader = new Thread(session::readResponses, "PeerSession-" + peerIP);
+            reader.setDaemon(true);
+            reader.start();
+            return session;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public String getPeerIP() {
+        return peerIP;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    public int getPendingCount() {
+        return pendingRequests.size();
+    }
+
+    // Stops waiting for one answer; if it still comes, the reader drops it. The session stays open for the others.
+    public void abandon(CompletableFuture<byte[]> response) {
+        pendingRequests.values().remove(response);
+    }
+
+    // Sends one request in the text format of protocols 1 to 3; the future completes with the response payload
+    public CompletableFuture<byte[]> send(String requestMessage) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        int requestId = nextRequestId.incrementAndGet();
+        pendingRequests.put(requestId, response);
+        try {
+            synchronized (out) {
+                out.writeInt(requestId);
+                out.writeUTF(requestMessage);
+                out.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return checkFailed(requestId, response);
+    }
+
+    // The requests below need protocol 4
+
+    public CompletableFuture<byte[]> requestFileSize(String fileName) {
+        return sendNamed(WireProtocol.OP_FILE_SIZE, fileName, 0, 0);
+    }
+
+    // With acceptDeflate (protocol 7) the answer starts with an encoding byte; see ChunkCompression.decode
+    public CompletableFuture<byte[]> requestChunk(String fileName, int chunkSize, int chunkID, boolean acceptDeflate) {
+        return sendNamed(WireProtocol.OP_CHUNK | (acceptDeflate ? WireProtocol.ACCEPTS_DEFLATE : 0), fileName, chunkSize, chunkID);
+    }
+
+    public CompletableFuture<byte[]> requestManifest(String fileName, int chunkSize) {
+        return sendNamed(WireProtocol.OP_MANIFEST, fileName, chunkSize, 0);
+    }
+
+    // Needs protocol 8; empty if the peer does not have the whole file
+    public CompletableFuture<byte[]> requestChecksums(String fileName, int chunkSize) {
+        return sendNamed(WireProtocol.OP_CHECKSUMS, fileName, chunkSize, 0);
+    }
+
+    // Needs protocol 5
+    public CompletableFuture<byte[]> requestAvailability(String fileName) {
+        return sendNamed(WireProtocol.OP_HAVE, fileName, 0, 0);
+    }
+
+    // Needs protocol 6; at most WireProtocol.MAX_BATCH_NAMES names
+    public CompletableFuture<byte[]> requestFileInfo(List<String> fileNames) {
+        return sendNames(WireProtocol.OP_FILE_INFO, fileNames);
+    }
+
+    // Needs protocol 6; the peer sends every file that is small enough in the one answer
+    public CompletableFuture<byte[]> requestFiles(List<String> fileNames) {
+        return sendNames(WireProtocol.OP_FILES, fileNames);
+    }
+
+    // One frame for all the chunks; the peer answers every chunk separately, as soon as it is read
+    public List<CompletableFuture<byte[]>> requestChunks(String fileName, int chunkSize, int[] chunkIDs, boolean acceptDeflate) {
+        int count = chunkIDs.length;
+        if (count == 0 || count > WireProtocol.MAX_BATCH_CHUNKS) {
+            throw new IllegalArgumentException("A batch holds 1 to " + WireProtocol.MAX_BATCH_CHUNKS + " chunks: " + count);
+        }
+        int firstRequestId = nextRequestId.getAndAdd(count) + 1;
+        List<CompletableFuture<byte[]>> responses = new ArrayList<>(count);
+        int payloadLength = WireProtocol.varIntSize(chunkSize) + WireProtocol.varIntSize(count) + WireProtocol.utf8Length(fileName);
+        for (int i = 0; i < count; i++) {
+            CompletableFuture<byte[]> response = new CompletableFuture<>();
+            pendingRequests.put(firstRequestId + i, response);
+            responses.add(response);
+            payloadLength += WireProtocol.varIntSize(chunkIDs[i]);
+        }
+        try {
+            synchronized (out) {
+                ByteBuffer frame = startFrame(firstRequestId, WireProtocol.OP_CHUNKS | (acceptDeflate ? WireProtocol.ACCEPTS_DEFLATE : 0), payloadLength);
+                WireProtocol.putVarInt(frame, chunkSize);
+                WireProtocol.putVarInt(frame, count);
+                for (int chunkID : chunkIDs) {
+                    WireProtocol.putVarInt(frame, chunkID);
+                }
+                WireProtocol.putUtf8(frame, fileName);
+                writeFrame(frame);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        for (int i = 0; i < count; i++) {
+            checkFailed(firstRequestId + i, responses.get(i));
+        }
+        return responses;
+    }
+
+    public CompletableFuture<byte[]> requestCatalog(long sinceVersion) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        int requestId = nextRequestId.incrementAndGet();
+        pendingRequests.put(requestId, response);
+        long encodedVersion = WireProtocol.zigZag(sinceVersion); // -1 asks for the whole catalog
+        try {
+            synchronized (out) {
+                ByteBuffer frame = startFrame(requestId, WireProtocol.OP_CATALOG, WireProtocol.varLongSize(encodedVersion));
+                WireProtocol.putVarLong(frame, encodedVersion);
+                writeFrame(frame);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return checkFailed(requestId, response);
+    }
+
+    private CompletableFuture<byte[]> sendNames(int opcode, List<String> fileNames) {
+        if (fileNames.isEmpty() || fileNames.size() > WireProtocol.MAX_BATCH_NAMES) {
+            throw new IllegalArgumentException("A request names 1 to " + WireProtocol.MAX_BATCH_NAMES + " files: " + fileNames.size());
+        }
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        int requestId = nextRequestId.incrementAndGet();
+        pendingRequests.put(requestId, response);
+        try {
+            synchronized (out) {
+                ByteBuffer frame = startFrame(requestId, opcode, WireProtocol.namesSize(fileNames));
+                WireProtocol.putNames(frame, fileNames);
+                writeFrame(frame);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return checkFailed(requestId, response);
+    }
+
+    // A request about one file: the chunk size and chunk ID are only written for the opcodes that carry them
+    private CompletableFuture<byte[]> sendNamed(int opcode, String fileName, int chunkSize, int chunkID) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        int requestId = nextRequestId.incrementAndGet();
+        pendingRequests.put(requestId, response);
+        boolean chunk = (opcode & ~WireProtocol.ACCEPTS_DEFLATE) == WireProtocol.OP_CHUNK;
+        boolean sized = chunk || opcode == WireProtocol.OP_MANIFEST || opcode == WireProtocol.OP_CHECKSUMS;
+        int payloadLength = WireProtocol.utf8Length(fileName) + (sized ? WireProtocol.varIntSize(chunkSize) : 0)
+                + (chunk ? WireProtocol.varIntSize(chunkID) : 0);
+        try {
+            synchronized (out) {
+                ByteBuffer frame = startFrame(requestId, opcode, payloadLength);
+                if (sized) {
+                    WireProtocol.putVarInt(frame, chunkSize);
+                }
+                if (chunk) {
+                    WireProtocol.putVarInt(frame, chunkID);
+                }
+                WireProtocol.putUtf8(frame, fileName);
+                writeFrame(frame);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return checkFailed(requestId, response);
+    }
+
+    // Caller holds "out"; the buffer only grows for unusually long names or batches
+    private ByteBuffer startFrame(int requestId, int opcode, int payloadLength) throws IOException {
+        if (payloadLength > WireProtocol.MAX_REQUEST_BYTES) {
+            throw new IOException("Request of " + payloadLength + " bytes is too large");
+        }
+        int frameLength = WireProtocol.MAX_HEADER_BYTES + payloadLength;
+        if (frame.capacity() < frameLength) {
+            frame = ByteBuffer.allocate(Math.max(frameLength, frame.capacity() * 2));
+        }
+        frame.clear();
+        WireProtocol.putVarInt(frame, requestId);
+        frame.put((byte) opcode);
+        WireProtocol.putVarInt(frame, payloadLength);
+        return frame;
+    }
+
+    private void writeFrame(ByteBuffer frame) throws IOException {
+        out.write(frame.array(), 0, frame.position());
+        out.flush();
+    }
+
+    // The session may have failed between the check and the put
+    private CompletableFuture<byte[]> checkFailed(int requestId, CompletableFuture<byte[]> response) {
+        IOException failure = this.failure;
+        if (failure != null && pendingRequests.remove(requestId) != null) {
+            response.completeExceptionally(failure);
+        }
+        return response;
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Session to " + peerIP + " closed"));
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                boolean binary = protocolVersion >= 4;
+                int requestId = binary ? WireProtocol.readVarInt(in) : in.readInt();
+                int length = binary ? WireProtocol.readVarInt(in) : in.readInt();
+                if (length < 0 || length > WireProtocol.MAX_RESPONSE_BYTES) {
+                    throw new IOException("Invalid response length from " + peerIP + ": " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CompletableFuture<byte[]> response = pendingRequests.remove(requestId);
+                if (response != null) {
+                    response.complete(payload);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("Broken response stream from " + peerIP, e)); // Must not leave the session looking open
+        }
+    }
+
+    private synchronized void fail(IOException cause) {
+        if (failure != null) {
+            return;
+        }
+        failure = cause;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Fail everything still in flight so callers can retry on a new session
+        List<Integer> requestIds = new ArrayList<>(pendingRequests.keySet());
+        for (Integer requestId : requestIds) {
+            CompletableFuture<byte[]> response = pendingRequests.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,490 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+// In-memory index of the shared folder, built once and kept current with a WatchService.
+// Every change to the advertised names bumps a version and is kept as a delta, so peers
+// only pull what changed since the version they last saw.
+public class SharedFileCatalog {
+    private static final int MAX_RETAINED_DELTAS = 256; // Older peers get a full listing instead
+
+    // Names added and removed since a given version; "full" means added holds the whole listing
+    public static class Changes {
+        public final long version;
+        public final boolean full;
+        public final Set<String> added;
+        public final Set<String> removed;
+
+        Changes(long version, boolean full, Set<String> added, Set<String> removed) {
+            this.version = version;
+            this.full = full;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(version);
+                out.writeBoolean(full);
+                out.writeInt(added.size());
+                for (String name : added) {
+                    out.writeUTF(name);
+                }
+                out.writeInt(removed.size());
+                for (String name : removed) {
+                    out.writeUTF(name);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Not thrown by in-memory streams
+            }
+            return bytes.toByteArray();
+        }
+
+        public static Changes decode(byte[] encoded) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+            long version = in.readLong();
+            boolean full = in.readBoolean();
+            Set<String> added = new LinkedHashSet<>();
+            for (int count = in.readInt(); count > 0; count--) {
+                added.add(in.readUTF());
+            }
+            Set<String> removed = new LinkedHashSet<>();
+            for (int count = in.readInt(); count > 0; count--) {
+                removed.add(in.readUTF());
+            }
+            return new Changes(version, full, added, removed);
+        }
+    }
+
+    public static class SharedFile {
+        public final String name;
+        public final Path path;
+        public final long size;
+        public final long lastModified;
+
+        SharedFile(Path path, long size, long lastModified) {
+            this.name = path.getFileName().toString();
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // Told about every file indexed with a new size or modification time, and every file gone from the index
+    public interface Listener {
+        void fileChanged(SharedFile file);
+
+        void fileRemoved(Path path);
+    }
+
+    // What lookups read; replaced as a whole when the folder is indexed again from scratch
+    private static class Index {
+        final ConcurrentHashMap<Path, SharedFile> filesByPath = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, SharedFile> filesByName = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, Set<Path>> pathsByName = new ConcurrentHashMap<>(); // First indexed first; changed inside compute
+    }
+
+    private final Path rootPath;
+    private final Set<Path> advertisedFolders = new HashSet<>(); // Folders whose direct files are broadcast to peers
+    private volatile Index index = new Index();
+    private final Map<WatchKey, Path> watchedFolders = new ConcurrentHashMap<>();
+    // The advertised names are kept up to date one file at a time; changes collect until the next publish
+    private final ConcurrentSkipListSet<String> advertised = new ConcurrentSkipListSet<>();
+    private final Map<String, Integer> advertisers = new HashMap<>(); // Guarded by "this"; files and downloads per advertised name
+    private final Set<String> pendingAdded = new LinkedHashSet<>(); // Guarded by "this"
+    private final Set<String> pendingRemoved = new LinkedHashSet<>(); // Guarded by "this"
+    private List<String> advertisedList; // Guarded by "this"; copy of advertised, null after a change
+    private final Set<String> partialDownloads = ConcurrentHashMap.newKeySet(); // Names being downloaded into the root folder
+    private volatile long version = 0;
+    private final ArrayDeque<Changes> deltas = new ArrayDeque<>(); // Guarded by "this"; oldest first
+    private volatile Listener listener;
+    private WatchService watchService;
+    private Thread watchThread;
+
+    public SharedFileCatalog(String sharedFolderPath, Set<String> selectedSharedFolders) {
+        this.rootPath = Paths.get(sharedFolderPath).toAbsolutePath().normalize();
+        advertisedFolders.add(rootPath);
+        if (selectedSharedFolders != null) {
+            for (String folderPath : selectedSharedFolders) {
+                advertisedFolders.add(Paths.get(folderPath).toAbsolutePath().normalize());
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (watchThread != null) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            e.printStackTrace(); // Without a watcher the index is still built, just not refreshed
+        }
+        indexFolder(index, rootPath, true);
+        publishAdvertisedNames();
+
+        if (watchService != null) {
+            watchThread = new Thread(this::processEvents, "SharedFileCatalog");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }
+    }
+
+    // Set before start() to hear about the files found by the first walk too
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        watchThread = null;
+    }
+
+    // O(1) lookup of a shared file anywhere under the shared folder
+    public SharedFile find(String filename) {
+        return index.filesByName.get(filename);
+    }
+
+    // Names broadcast to peers, sorted: files directly in the shared folder and in the selected subfolders,
+    // and downloads in progress. Copied only when asked for after a change.
+    public synchronized List<String> getAdvertisedNames() {
+        if (advertisedList == null) {
+            advertisedList = Collections.unmodifiableList(new ArrayList<>(advertised));
+        }
+        return advertisedList;
+    }
+
+    // A download in progress is advertised under its final name, so peers can fetch the chunks it already has
+    public void addPartialDownload(String name) {
+        if (partialDownloads.add(name)) {
+            advertise(name);
+        }
+        publishAdvertisedNames();
+    }
+
+    // A completed download is indexed first, so its name is never briefly missing from the listing
+    public void removePartialDownload(String name) {
+        indexFile(index, rootPath.resolve(name), true);
+        if (partialDownloads.remove(name)) {
+            unadvertise(name);
+        }
+        publishAdvertisedNames();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // What a peer that has seen sinceVersion needs to catch up
+    public synchronized Changes getChangesSince(long sinceVersion) {
+        if (sinceVersion == version) {
+            return new Changes(version, false, Collections.emptySet(), Collections.emptySet());
+        }
+        Changes oldest = deltas.peekFirst();
+        if (sinceVersion > version || oldest == null || sinceVersion < oldest.version - 1) {
+            return new Changes(version, true, new LinkedHashSet<>(getAdvertisedNames()), Collections.emptySet());
+        }
+
+        // Fold the deltas after sinceVersion into one; a name added and then removed ends up removed
+        Set<String> added = new LinkedHashSet<>();
+        Set<String> removed = new LinkedHashSet<>();
+        for (Changes delta : deltas) {
+            if (delta.version <= sinceVersion) {
+                continue;
+            }
+            for (String name : delta.added) {
+                removed.remove(name);
+                added.add(name);
+            }
+            for (String name : delta.removed) {
+                added.remove(name);
+                removed.add(name);
+            }
+        }
+        return new Changes(version, false, added, removed);
+    }
+
+    public int size() {
+        return index.filesByPath.size();
+    }
+
+    // With live false the index is being built aside and the advertised names are left alone
+    private void indexFolder(Index index, Path folder, boolean live) {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.forEach(path -> {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    watch(path);
+                } else {
+                    indexFile(index, path, live);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void indexFile(Index index, Path path, boolean live) {
+        if (ChunkFileWriter.isDownloadArtifact(path)) {
+            if (index.filesByPath.containsKey(path)) {
+                removePath(index, path); // Became a download's part file
+            }
+            return; // Downloads in progress are not shared
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return;
+            }
+            SharedFile file = new SharedFile(path, attributes.size(), attributes.lastModifiedTime().toMillis());
+            SharedFile previous = index.filesByPath.put(path, file);
+            if (live) {
+                fileChanged(previous, file);
+            }
+            if (previous == null) {
+                index.pathsByName.compute(file.name, (name, paths) -> {
+                    paths = paths != null ? paths : new LinkedHashSet<>();
+                    paths.add(path);
+                    return paths;
+                });
+                if (live && isAdvertised(path)) {
+                    advertise(file.name);
+                }
+            }
+            // The first file indexed under a name wins, as the old recursive walk did
+            index.filesByName.merge(file.name, file, (existing, added) -> existing.path.equals(added.path) ? added : existing);
+        } catch (IOException e) {
+            removePath(index, path); // Vanished between the event and the stat
+        }
+    }
+
+    private void removePath(Index index, Path path) {
+        SharedFile file = index.filesByPath.remove(path);
+        if (file != null) {
+            Listener listener = this.listener;
+            if (listener != null) {
+                listener.fileRemoved(path);
+            }
+            index.pathsByName.computeIfPresent(file.name, (name, paths) -> {
+                paths.remove(path);
+                return paths.isEmpty() ? null : paths;
+            });
+            if (isAdvertised(path)) {
+                unadvertise(file.name);
+            }
+            if (index.filesByName.remove(file.name, file)) {
+                promoteReplacement(index, file.name);
+            }
+            return;
+        }
+
+        List<Path> removed = new ArrayList<>();
+        for (Path indexed : index.filesByPath.keySet()) {
+            if (indexed.startsWith(path)) {
+                removed.add(indexed); // A deleted folder takes its files with it
+            }
+        }
+        for (Path indexed : removed) {
+            removePath(index, indexed);
+        }
+    }
+
+    // The next file indexed under the same name elsewhere in the tree takes over the name
+    private void promoteReplacement(Index index, String name) {
+        index.pathsByName.computeIfPresent(name, (key, paths) -> {
+            for (Path candidate : paths) {
+                SharedFile file = index.filesByPath.get(candidate);
+                if (file != null) {
+                    index.filesByName.putIfAbsent(name, file);
+                    break;
+                }
+            }
+            return paths;
+        });
+    }
+
+    private void fileChanged(SharedFile previous, SharedFile file) {
+        Listener listener = this.listener;
+        if (listener != null && (previous == null || previous.size != file.size || previous.lastModified != file.lastModified)) {
+            listener.fileChanged(file);
+        }
+    }
+
+    private boolean isAdvertised(Path path) {
+        return advertisedFolders.contains(path.getParent());
+    }
+
+    private synchronized void advertise(String name) {
+        if (advertisers.merge(name, 1, Integer::sum) == 1) {
+            nameAdded(name);
+        }
+    }
+
+    private synchronized void unadvertise(String name) {
+        Integer count = advertisers.get(name);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            advertisers.put(name, count - 1);
+            return;
+        }
+        advertisers.remove(name);
+        nameRemoved(name);
+    }
+
+    // A name removed and added back before the next publish cancels out
+    private void nameAdded(String name) {
+        advertised.add(name);
+        if (!pendingRemoved.remove(name)) {
+            pendingAdded.add(name);
+        }
+        advertisedList = null;
+    }
+
+    private void nameRemoved(String name) {
+        advertised.remove(name);
+        if (!pendingAdded.remove(name)) {
+            pendingRemoved.add(name);
+        }
+        advertisedList = null;
+    }
+
+    private void watch(Path folder) {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            WatchKey key = folder.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedFolders.put(key, folder);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path folder = watchedFolders.get(key);
+                if (folder != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        handleEvent(folder, event);
+                    }
+                }
+                if (!key.reset()) {
+                    watchedFolders.remove(key);
+                }
+                publishAdvertisedNames();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Catalog stopped
+        }
+    }
+
+    private void handleEvent(Path folder, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            reindex(); // Events were dropped
+            return;
+        }
+        Path path = folder.resolve((Path) event.context());
+        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            removePath(index, path);
+        } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                indexFolder(index, path, true); // Picks up files created before the new folder was registered
+            }
+        } else {
+            indexFile(index, path, true);
+        }
+    }
+
+    // Rebuilds from disk aside while lookups keep using the old index, then swaps it in
+    private void reindex() {
+        Index fresh = new Index();
+        indexFolder(fresh, rootPath, false);
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : partialDownloads) {
+            counts.merge(name, 1, Integer::sum);
+        }
+        Index previous = index;
+        for (SharedFile file : fresh.filesByPath.values()) {
+            if (isAdvertised(file.path)) {
+                counts.merge(file.name, 1, Integer::sum);
+            }
+            fileChanged(previous.filesByPath.get(file.path), file);
+        }
+        Listener listener = this.listener;
+        if (listener != null) {
+            for (Path path : previous.filesByPath.keySet()) {
+                if (!fresh.filesByPath.containsKey(path)) {
+                    listener.fileRemoved(path);
+                }
+            }
+        }
+        synchronized (this) {
+            index = fresh;
+            for (String name : advertisers.keySet()) {
+                if (!counts.containsKey(name)) {
+                    nameRemoved(name);
+                }
+            }
+            for (String name : counts.keySet()) {
+                if (!advertisers.containsKey(name)) {
+                    nameAdded(name);
+                }
+            }
+            advertisers.clear();
+            advertisers.putAll(counts);
+        }
+    }
+
+    // Turns the changes collected since the last publish into one delta under a new version
+    private synchronized void publishAdvertisedNames() {
+        if (pendingAdded.isEmpty() && pendingRemoved.isEmpty()) {
+            return; // Only sizes or unadvertised files changed
+        }
+        version++;
+        deltas.addLast(new Changes(version, false, new LinkedHashSet<>(pendingAdded), new LinkedHashSet<>(pendingRemoved)));
+        if (deltas.size() > MAX_RETAINED_DELTAS) {
+            deltas.removeFirst();
+        }
+        pendingAdded.clear();
+        pendingRemoved.clear();
+    }
+}
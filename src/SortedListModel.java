@@ -0,0 +1,81 @@
+import javax.swing.AbstractListModel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+// Sorted, duplicate-free list model that fires one event per changed row, so a JList only repaints what moved.
+// Large batches are merged in one pass and announced as a single change. Must only be used on the event thread.
+public class SortedListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    private static final int BATCH_MERGE_THRESHOLD = 256; // Beyond this many changes, one rebuild beats row-by-row inserts
+
+    private final List<String> items = new ArrayList<>();
+
+    @Override
+    public int getSize() {
+        return items.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return items.get(index);
+    }
+
+    public boolean contains(String item) {
+        return Collections.binarySearch(items, item) >= 0;
+    }
+
+    public void add(String item) {
+        int index = Collections.binarySearch(items, item);
+        if (index < 0) {
+            index = -index - 1;
+            items.add(index, item);
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
+    public void remove(String item) {
+        int index = Collections.binarySearch(items, item);
+        if (index >= 0) {
+            items.remove(index);
+            fireIntervalRemoved(this, index, index);
+        }
+    }
+
+    public void apply(Collection<String> added, Collection<String> removed) {
+        if (added.size() + removed.size() < BATCH_MERGE_THRESHOLD) {
+            for (String item : removed) {
+                remove(item);
+            }
+            for (String item : added) {
+                add(item);
+            }
+            return;
+        }
+        TreeSet<String> merged = new TreeSet<>(items);
+        merged.removeAll(removed);
+        merged.addAll(added);
+        int oldSize = items.size();
+        items.clear();
+        items.addAll(merged);
+        if (oldSize > items.size()) {
+            fireIntervalRemoved(this, items.size(), oldSize - 1);
+        } else if (oldSize < items.size()) {
+            fireIntervalAdded(this, oldSize, items.size() - 1);
+        }
+        if (!items.isEmpty()) {
+            fireContentsChanged(this, 0, items.size() - 1);
+        }
+    }
+
+    public void clear() {
+        int oldSize = items.size();
+        if (oldSize > 0) {
+            items.clear();
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+    }
+}
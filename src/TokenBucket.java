@@ -0,0 +1,126 @@
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// Limits a byte rate. Tokens refill at the configured rate up to a small burst, and a caller waits until
+// enough have built up. A request larger than the burst goes ahead once the bucket is full and leaves it
+// in debt, so chunks of any size pass at the average rate.
+// Waiting callers belong to flows (a transfer, a peer) and are served in start-time fair queuing order:
+// each request is tagged with where it would finish if its flow had the link to itself, and the lowest tag
+// goes first. Flows that keep asking therefore share the rate by bytes, whatever their chunk size.
+// The rate can be changed at any time; 0 means unlimited.
+public class TokenBucket {
+    public static final long UNLIMITED = 0;
+    private static final double BURST_SECONDS = 0.1;
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private static class Waiter {
+        final long bytes;
+        final double finishTag;
+        final long sequence;
+        boolean granted = false;
+
+        Waiter(long bytes, double finishTag, long sequence) {
+            this.bytes = bytes;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+        }
+    }
+
+    // Guarded by "this"
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private double virtualTime = 0; // Finish tag of the last request granted
+    private long nextSequence = 0;
+    private final Map<Object, Double> lastFinishByFlow = new HashMap<>();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+            Comparator.<Waiter>comparingDouble(waiter -> waiter.finishTag).thenComparingLong(waiter -> waiter.sequence));
+
+    public TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.tokens = burst();
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        tokens = Math.min(tokens, burst());
+        notifyAll(); // Waiters recompute how long they still have to wait
+    }
+
+    // Blocks until the bytes may be sent or received
+    public void acquire(Object flow, long bytes) throws InterruptedException {
+        synchronized (this) {
+            if (bytesPerSecond == UNLIMITED && waiters.isEmpty()) {
+                return;
+            }
+            double start = Math.max(virtualTime, lastFinishByFlow.getOrDefault(flow, 0.0));
+            Waiter waiter = new Waiter(bytes, start + bytes, nextSequence++);
+            lastFinishByFlow.put(flow, waiter.finishTag);
+            waiters.add(waiter);
+            try {
+                while (true) {
+                    grantReady();
+                    if (waiter.granted) {
+                        return;
+                    }
+                    wait(Math.max(1, nanosUntilGrant() / 1_000_000));
+                }
+            } finally {
+                if (!waiter.granted) {
+                    waiters.remove(waiter);
+                    notifyAll(); // The next waiter may be grantable now
+                }
+            }
+        }
+    }
+
+    private void grantReady() {
+        refill();
+        boolean grantedAny = false;
+        while (!waiters.isEmpty()) {
+            Waiter head = waiters.peek();
+            if (bytesPerSecond != UNLIMITED && tokens < Math.min(head.bytes, burst())) {
+                break;
+            }
+            waiters.poll();
+            if (bytesPerSecond != UNLIMITED) {
+                tokens -= head.bytes;
+            }
+            virtualTime = Math.max(virtualTime, head.finishTag);
+            head.granted = true;
+            grantedAny = true;
+        }
+        if (grantedAny) {
+            lastFinishByFlow.values().removeIf(finish -> finish <= virtualTime); // Flows that went idle start fresh
+            notifyAll();
+        }
+    }
+
+    private long nanosUntilGrant() {
+        Waiter head = waiters.peek();
+        if (head == null || bytesPerSecond == UNLIMITED) {
+            return 0;
+        }
+        double missing = Math.min(head.bytes, burst()) - tokens;
+        return (long) Math.ceil(Math.max(0, missing) * 1e9 / bytesPerSecond);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond != UNLIMITED) {
+            tokens = Math.min(burst(), tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        }
+        lastRefillNanos = now;
+    }
+
+    private double burst() {
+        return Math.max(MIN_BURST_BYTES, bytesPerSecond * BURST_SECONDS);
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One download. Download threads update it freely; the transfer manager publishes snapshots of it at a bounded rate.
+public class Transfer {
+    public enum State { QUEUED, RUNNING, COMPLETED, FAILED }
+
+    // Immutable view of a transfer at one publish tick
+    public static class Progress {
+        public final int id;
+        public final String fileName;
+        public final State state;
+        public final long bytesReceived;
+        public final long totalBytes; // -1 until the size is known
+        public final double bytesPerSecond;
+        public final String message;
+
+        Progress(int id, String fileName, State state, long bytesReceived, long totalBytes, double bytesPerSecond, String message) {
+            this.id = id;
+            this.fileName = fileName;
+            this.state = state;
+            this.bytesReceived = bytesReceived;
+            this.totalBytes = totalBytes;
+            this.bytesPerSecond = bytesPerSecond;
+            this.message = message;
+        }
+
+        public double getPercentage() {
+            return totalBytes > 0 ? 100.0 * bytesReceived / totalBytes : 0;
+        }
+
+        public boolean isFinished() {
+            return state == State.COMPLETED || state == State.FAILED;
+        }
+    }
+
+    private static final double RATE_SMOOTHING = 0.5; // Weight of the newest interval in the displayed speed
+
+    private final int id;
+    private final String fileName;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+    private volatile long totalBytes = -1;
+    private volatile State state = State.QUEUED;
+    private volatile String message = "Queued";
+    private final CompletableFuture<Transfer> finished = new CompletableFuture<>();
+    private final TokenBucket rateLimit;
+
+    // Only touched by the publishing thread
+    private long lastPublishedBytes = 0;
+    private long lastPublishedNanos = System.nanoTime();
+    private double bytesPerSecond = 0;
+
+    public Transfer(int id, String fileName) {
+        this(id, fileName, TokenBucket.UNLIMITED);
+    }
+
+    public Transfer(int id, String fileName, long bytesPerSecond) {
+        this.id = id;
+        this.fileName = fileName;
+        this.rateLimit = new TokenBucket(bytesPerSecond);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isFinished() {
+        return state == State.COMPLETED || state == State.FAILED;
+    }
+
+    // Completes with this transfer once it has completed or failed
+    public CompletableFuture<Transfer> whenFinished() {
+        return finished;
+    }
+
+    // Download rate of this transfer alone in bytes per second, 0 for unlimited; takes effect on the next chunk
+    public void setRateLimit(long bytesPerSecond) {
+        rateLimit.setRate(bytesPerSecond);
+    }
+
+    public long getRateLimit() {
+        return rateLimit.getRate();
+    }
+
+    // Waits until this transfer's own limit lets the bytes in
+    void acquireBandwidth(long bytes) throws InterruptedException {
+        rateLimit.acquire(this, bytes);
+    }
+
+    void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+        changed.set(true);
+    }
+
+    void addBytesReceived(long bytes) {
+        bytesReceived.addAndGet(bytes);
+        changed.set(true);
+    }
+
+    void update(State state, String message) {
+        this.state = state;
+        this.message = message;
+        changed.set(true);
+        if (isFinished()) {
+            finished.complete(this);
+        }
+    }
+
+    // Returns a snapshot if anything changed since the last call, otherwise null
+    Progress publish() {
+        // Cleared before anything is read, so a change made meanwhile is published now or on the next call
+        boolean wasChanged = changed.getAndSet(false);
+        State state = this.state;
+        String message = this.message;
+        long now = System.nanoTime();
+        long received = bytesReceived.get();
+        double intervalSeconds = (now - lastPublishedNanos) / 1e9;
+        if (intervalSeconds > 0) {
+            double sample = (received - lastPublishedBytes) / intervalSeconds;
+            bytesPerSecond = RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * bytesPerSecond;
+        }
+        lastPublishedBytes = received;
+        lastPublishedNanos = now;
+
+        if (!wasChanged) {
+            return null;
+        }
+        boolean done = state == State.COMPLETED || state == State.FAILED;
+        return new Progress(id, fileName, state, received, totalBytes, done ? 0 : bytesPerSecond, message);
+    }
+}
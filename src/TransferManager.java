@@ -0,0 +1,553 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs downloads in the background, a bounded number at a time; the rest wait in the queue.
+// Download threads only bump counters on their Transfer; a publisher thread collects whatever changed
+// every PUBLISH_INTERVAL_MILLIS and hands it to listeners in one batch, so a listener sees at most
+// 1000 / PUBLISH_INTERVAL_MILLIS updates per second per transfer no matter how fast chunks arrive.
+// Many files queued at once (downloadAll) have their sizes asked for in batches, and the small ones
+// travel several to a transfer, so each file does not pay its own round trips.
+public class TransferManager {
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+    private static final long PUBLISH_INTERVAL_MILLIS = 100; // At most 10 updates per second per transfer
+    private static final long AVAILABILITY_REFRESH_MILLIS = 2000; // How often peers that are still downloading are asked what they hold
+    private static final long SMALL_FILE_BYTES = 256 * 1024; // Files up to this size are packed with others from the same peer
+    private static final long PACK_BYTES = 1024 * 1024; // Contents of one packed transfer
+
+    public interface TransferListener {
+        void onTransfersUpdated(List<Transfer.Progress> updates);
+    }
+
+    private final NodeThread node;
+    private final ExecutorService downloadWorkers;
+    private final ScheduledExecutorService publisher;
+    private final ScheduledExecutorService availabilityPoller;
+    private final ExecutorService batchPlanner;
+    private final AtomicInteger nextTransferId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Transfer> transfers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Transfer> activeTransfersByFile = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<TransferListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long transferRateLimit = TokenBucket.UNLIMITED; // Given to each new transfer
+
+    public TransferManager(NodeThread node) {
+        this(node, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    public TransferManager(NodeThread node, int maxConcurrentDownloads) {
+        this.node = node;
+        this.downloadWorkers = Executors.newFixedThreadPool(Math.max(1, maxConcurrentDownloads), daemonThreads("TransferManager-download"));
+        this.publisher = Executors.newSingleThreadScheduledExecutor(daemonThreads("TransferManager-publisher"));
+        publisher.scheduleAtFixedRate(this::publish, PUBLISH_INTERVAL_MILLIS, PUBLISH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.availabilityPoller = Executors.newSingleThreadScheduledExecutor(daemonThreads("TransferManager-availability"));
+        this.batchPlanner = Executors.newSingleThreadExecutor(daemonThreads("TransferManager-planner"));
+    }
+
+    public void addListener(TransferListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(TransferListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Download rate each new transfer starts with, in bytes per second, 0 for unlimited; Transfer.setRateLimit changes one
+    public void setTransferRateLimit(long bytesPerSecond) {
+        this.transferRateLimit = Math.max(0, bytesPerSecond);
+    }
+
+    public long getTransferRateLimit() {
+        return transferRateLimit;
+    }
+
+    // Queues a download and returns at once; a file that is already queued or running is not queued twice
+    public Transfer download(String fileName, List<String> peerIPs) {
+        Transfer transfer = new Transfer(nextTransferId.incrementAndGet(), fileName, transferRateLimit);
+        if (targetPath(fileName) == null) {
+            return reject(transfer);
+        }
+        Transfer existing = activeTransfersByFile.putIfAbsent(fileName, transfer);
+        if (existing != null) {
+            return existing;
+        }
+        transfers.put(transfer.getId(), transfer);
+        List<String> peers = new ArrayList<>(peerIPs);
+        downloadWorkers.submit(() -> {
+            try {
+                runDownload(transfer, peers);
+            } catch (Exception e) {
+                e.printStackTrace();
+                transfer.update(Transfer.State.FAILED, "Error: " + e.getMessage());
+            } finally {
+                activeTransfersByFile.remove(fileName, transfer);
+            }
+        });
+        return transfer;
+    }
+
+    // Queues many files, each with the peers that have it, and returns at once. The future completes with the
+    // transfers made for them once the sizes are known: one per pack of small files and one per other file.
+    // Packs and downloads share the concurrent download slots, so those bound how many run in parallel.
+    public CompletableFuture<List<Transfer>> downloadAll(Map<String, List<String>> peersByFile) {
+        Map<String, List<String>> requested = new LinkedHashMap<>();
+        List<Transfer> rejected = new ArrayList<>();
+        peersByFile.forEach((fileName, peerIPs) -> {
+            if (targetPath(fileName) != null) {
+                requested.put(fileName, new ArrayList<>(peerIPs));
+            } else {
+                rejected.add(reject(new Transfer(nextTransferId.incrementAndGet(), fileName, transferRateLimit)));
+            }
+        });
+        return CompletableFuture.supplyAsync(() -> {
+            List<Transfer> planned = planBatch(requested);
+            planned.addAll(rejected);
+            return planned;
+        }, batchPlanner);
+    }
+
+    // Where a download of the file goes, or null if the name is not a single file name inside the shared folder.
+    // Names come from peers' catalogs, so one like "../x" or "/etc/x" must never reach the disk.
+    private Path targetPath(String fileName) {
+        Path folder = Paths.get(node.sharedFolderPath).toAbsolutePath().normalize();
+        Path name;
+        try {
+            name = Paths.get(fileName);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (fileName.isEmpty() || name.isAbsolute() || name.getNameCount() != 1 || !name.toString().equals(fileName)) {
+            return null;
+        }
+        Path target = folder.resolve(name).normalize();
+        return folder.equals(target.getParent()) ? target : null; // Also rules out "." and ".."
+    }
+
+    // Shown like any other failed download, but never queued
+    private Transfer reject(Transfer transfer) {
+        transfers.put(transfer.getId(), transfer);
+        transfer.update(Transfer.State.FAILED, "Not a valid file name");
+        return transfer;
+    }
+
+    public List<Transfer> getTransfers() {
+        return new ArrayList<>(transfers.values());
+    }
+
+    // Drops finished transfers from the model; running ones are kept
+    public void clearFinished() {
+        transfers.values().removeIf(Transfer::isFinished);
+    }
+
+    public void shutdown() {
+        downloadWorkers.shutdownNow();
+        publisher.shutdownNow();
+        availabilityPoller.shutdownNow();
+        batchPlanner.shutdownNow();
+    }
+
+    // Every file goes to the fastest of its peers that speaks protocol 6, unless another of them has fewer files
+    // assigned so far, and each peer is asked for its files' sizes a batch at a time. Files up to SMALL_FILE_BYTES
+    // are packed up to PACK_BYTES a transfer; larger files, and files only older peers have, are downloaded in chunks.
+    private List<Transfer> planBatch(Map<String, List<String>> peersByFile) {
+        List<Transfer> planned = new ArrayList<>();
+        Map<String, Boolean> batchCapable = new HashMap<>();
+        Map<String, List<String>> filesByPeer = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : peersByFile.entrySet()) {
+            Transfer existing = activeTransfersByFile.get(entry.getKey());
+            if (existing != null) {
+                planned.add(existing);
+                continue;
+            }
+            String chosenPeer = null;
+            for (String peerIP : node.peerLiveness.rankPeers(entry.getValue())) {
+                if (!batchCapable.computeIfAbsent(peerIP, ip -> node.negotiateProtocolVersion(ip) >= 6)) {
+                    continue;
+                }
+                if (chosenPeer == null || filesByPeer.getOrDefault(peerIP, List.of()).size() < filesByPeer.getOrDefault(chosenPeer, List.of()).size()) {
+                    chosenPeer = peerIP;
+                }
+            }
+            if (chosenPeer == null) {
+                planned.add(download(entry.getKey(), entry.getValue()));
+            } else {
+                filesByPeer.computeIfAbsent(chosenPeer, ip -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : filesByPeer.entrySet()) {
+            String peerIP = entry.getKey();
+            List<String> fileNames = entry.getValue();
+            Map<String, Long> pack = new LinkedHashMap<>();
+            long packBytes = 0;
+            for (int start = 0; start < fileNames.size(); start += WireProtocol.MAX_BATCH_NAMES) {
+                List<String> batch = fileNames.subList(start, Math.min(fileNames.size(), start + WireProtocol.MAX_BATCH_NAMES));
+                long[] sizes = node.requestFileSizes(batch, peerIP);
+                for (int i = 0; i < batch.size(); i++) {
+                    String fileName = batch.get(i);
+                    long size = sizes != null ? sizes[i] : -1;
+                    if (size < 0 || size > SMALL_FILE_BYTES) {
+                        planned.add(download(fileName, peersByFile.get(fileName))); // Also when this peer only has part of it
+                        continue;
+                    }
+                    if (packBytes + size > PACK_BYTES || pack.size() == WireProtocol.MAX_BATCH_NAMES) {
+                        addPack(planned, peerIP, pack, peersByFile);
+                        pack = new LinkedHashMap<>();
+                        packBytes = 0;
+                    }
+                    pack.put(fileName, size);
+                    packBytes += size;
+                }
+            }
+            addPack(planned, peerIP, pack, peersByFile);
+        }
+        return planned;
+    }
+
+    // One transfer for several small files from one peer; files queued meanwhile by someone else are left out
+    private void addPack(List<Transfer> planned, String peerIP, Map<String, Long> pack, Map<String, List<String>> peersByFile) {
+        if (pack.isEmpty()) {
+            return;
+        }
+        String name = pack.size() == 1 ? pack.keySet().iterator().next() : pack.size() + " files from " + peerIP;
+        Transfer transfer = new Transfer(nextTransferId.incrementAndGet(), name, transferRateLimit);
+        Map<String, Long> packed = new LinkedHashMap<>();
+        long packBytes = 0;
+        for (Map.Entry<String, Long> file : pack.entrySet()) {
+            Transfer existing = activeTransfersByFile.putIfAbsent(file.getKey(), transfer);
+            if (existing == null) {
+                packed.put(file.getKey(), file.getValue());
+                packBytes += file.getValue();
+            } else {
+                planned.add(existing);
+            }
+        }
+        if (packed.isEmpty()) {
+            return;
+        }
+        transfer.setTotalBytes(packBytes);
+        transfers.put(transfer.getId(), transfer);
+        planned.add(transfer);
+        downloadWorkers.submit(() -> {
+            try {
+                runPack(transfer, peerIP, packed, peersByFile);
+            } catch (Exception e) {
+                e.printStackTrace();
+                transfer.update(Transfer.State.FAILED, "Error: " + e.getMessage());
+                packed.keySet().forEach(fileName -> activeTransfersByFile.remove(fileName, transfer));
+            }
+        });
+    }
+
+    // Fetches the whole pack in one request and moves each file into place. Files that did not arrive intact
+    // are queued as downloads of their own, with every peer that has them, and the pack finishes with them.
+    private void runPack(Transfer transfer, String peerIP, Map<String, Long> pack, Map<String, List<String>> peersByFile) throws InterruptedException {
+        List<String> fileNames = new ArrayList<>(pack.keySet());
+        long packBytes = 0;
+        for (long size : pack.values()) {
+            packBytes += size;
+        }
+        transfer.update(Transfer.State.RUNNING, "Downloading " + fileNames.size() + " file(s) from " + peerIP);
+        transfer.acquireBandwidth(packBytes);
+        node.downloadLimiter.acquire(peerIP, transfer, packBytes);
+        byte[][] contents = node.peerLiveness.isExpired(peerIP) ? new byte[fileNames.size()][] : node.requestFiles(fileNames, peerIP);
+
+        List<String> leftOver = new ArrayList<>();
+        for (int i = 0; i < contents.length; i++) {
+            String fileName = fileNames.get(i);
+            if (contents[i] != null) {
+                Path target = targetPath(fileName);
+                Path part = Paths.get(target + ChunkFileWriter.PART_SUFFIX);
+                try {
+                    Files.write(part, contents[i]);
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                    transfer.addBytesReceived(contents[i].length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    contents[i] = null;
+                }
+            }
+            activeTransfersByFile.remove(fileName, transfer);
+            if (contents[i] == null) {
+                leftOver.add(fileName);
+            }
+        }
+        if (leftOver.isEmpty()) {
+            transfer.update(Transfer.State.COMPLETED, "Completed");
+            return;
+        }
+
+        List<CompletableFuture<Transfer>> retries = new ArrayList<>();
+        for (String fileName : leftOver) {
+            packBytes -= pack.get(fileName);
+            retries.add(download(fileName, peersByFile.get(fileName)).whenFinished());
+        }
+        transfer.setTotalBytes(packBytes); // The retried files show up as transfers of their own
+        transfer.update(Transfer.State.RUNNING, leftOver.size() + " of " + fileNames.size() + " file(s) queued on their own");
+        CompletableFuture.allOf(retries.toArray(CompletableFuture<?>[]::new)).thenRun(() -> {
+            long failed = retries.stream().filter(retry -> retry.join().getState() != Transfer.State.COMPLETED).count();
+            transfer.update(failed == 0 ? Transfer.State.COMPLETED : Transfer.State.FAILED,
+                    failed == 0 ? "Completed" : failed + " of " + fileNames.size() + " file(s) failed");
+        });
+    }
+
+    private void runDownload(Transfer transfer, List<String> peerIPs) throws IOException, InterruptedException {
+        String fileName = transfer.getFileName();
+        // Dead and failing nodes are left out, and the rest are asked in order of their round-trip time
+        List<String> nodesWithFile = node.peerLiveness.rankPeers(peerIPs);
+        if (nodesWithFile.isEmpty()) {
+            transfer.update(Transfer.State.FAILED, "No node shares this file");
+            return;
+        }
+        transfer.update(Transfer.State.RUNNING, "Requesting file information");
+
+        // Some nodes may still be downloading the file themselves and only hold part of it
+        Map<String, ChunkAvailability> availability = new HashMap<>();
+        for (String nodeIP : nodesWithFile) {
+            availability.put(nodeIP, node.requestAvailability(fileName, nodeIP));
+        }
+        nodesWithFile.removeIf(nodeIP -> availability.get(nodeIP).isNone());
+        if (nodesWithFile.isEmpty()) {
+            transfer.update(Transfer.State.FAILED, "No node shares this file");
+            return;
+        }
+
+        long fileSize = -1;
+        for (String nodeIP : nodesWithFile) {
+            fileSize = node.requestFileSize(fileName, nodeIP);
+            if (fileSize >= 0) {
+                break;
+            }
+        }
+        if (fileSize < 0) {
+            transfer.update(Transfer.State.FAILED, "Could not get the file size");
+            return;
+        }
+        transfer.setTotalBytes(fileSize);
+
+        // The chunk size is ours to pick, but nodes before protocol 3 only serve the default size.
+        // A download interrupted earlier keeps its chunk size, so its progress file stays valid,
+        // and a download that joins a swarm takes the size its partial copies are cut in.
+        // An older copy of the file here is reused where it still matches, in chunks as small as the file allows.
+        String targetFile = targetPath(fileName).toString();
+        int fixedChunkSize = ChunkFileWriter.savedChunkSize(targetFile);
+        for (String nodeIP : nodesWithFile) {
+            if (fixedChunkSize == 0 && availability.get(nodeIP).isPartial()) {
+                fixedChunkSize = availability.get(nodeIP).getChunkSize();
+            }
+        }
+        Path oldCopy = Paths.get(targetFile);
+        boolean deltaSync = false;
+        if (Files.isRegularFile(oldCopy)) {
+            for (String nodeIP : nodesWithFile) {
+                deltaSync |= availability.get(nodeIP).isComplete() && node.negotiateProtocolVersion(nodeIP) >= 8;
+            }
+        }
+        int chunkSize = fixedChunkSize != 0 ? fixedChunkSize
+                : deltaSync ? node.chooseDeltaChunkSize(fileSize) : node.chooseChunkSize(fileSize, nodesWithFile);
+        if (chunkSize != ChunkSizing.DEFAULT_CHUNK_SIZE) {
+            List<String> capableNodes = new ArrayList<>();
+            boolean allCapable = true;
+            for (String nodeIP : nodesWithFile) {
+                if (node.negotiateProtocolVersion(nodeIP) >= 3) {
+                    capableNodes.add(nodeIP);
+                } else {
+                    allCapable = false;
+                }
+            }
+            if (capableNodes.isEmpty() || (!allCapable && fixedChunkSize == 0)) {
+                chunkSize = ChunkSizing.DEFAULT_CHUNK_SIZE; // Let every node help rather than only the newer ones
+            } else {
+                nodesWithFile = capableNodes;
+            }
+        }
+        int servedChunkSize = chunkSize;
+        nodesWithFile.removeIf(nodeIP -> !availability.get(nodeIP).canServe(servedChunkSize)); // Partial copies cut differently
+        if (nodesWithFile.isEmpty()) {
+            transfer.update(Transfer.State.FAILED, "No node has the file in " + chunkSize / 1024 + " KB chunks");
+            return;
+        }
+
+        // Every chunk is checked against the manifest's hashes; bad chunks are fetched from another node.
+        // Nodes that predate manifests can still serve chunks once a newer node has supplied one.
+        ChunkManifest manifest = null;
+        for (String nodeIP : nodesWithFile) {
+            manifest = node.requestManifest(fileName, nodeIP, chunkSize);
+            if (manifest != null) {
+                break;
+            }
+        }
+        if (manifest == null || manifest.getFileSize() != fileSize || manifest.getChunkSize() != chunkSize) {
+            transfer.update(Transfer.State.FAILED, "Could not get the chunk hashes");
+            return;
+        }
+        int downloadChunkSize = chunkSize;
+        ChunkScheduler scheduler = new ChunkScheduler(nodesWithFile, fileSize, chunkSize, ChunkScheduler.DEFAULT_MAX_IN_FLIGHT_PER_PEER, manifest);
+        scheduler.setRetryCounter(node.chunkRetries);
+        scheduler.startAtRandomChunk();
+        List<String> partialNodes = new ArrayList<>();
+        for (String nodeIP : nodesWithFile) {
+            if (availability.get(nodeIP).isPartial()) {
+                partialNodes.add(nodeIP);
+                scheduler.updateAvailability(nodeIP, availability.get(nodeIP).getChunks());
+            }
+        }
+        boolean batching = true;
+        for (String nodeIP : nodesWithFile) {
+            batching &= node.getPeerProtocolVersion(nodeIP) >= 4;
+        }
+        if (batching) {
+            scheduler.setMaxChunksPerRequest(ChunkScheduler.batchSizeFor(chunkSize)); // Small chunks travel several to a request
+        }
+
+        // Chunks go straight to disk, so memory is bounded by the chunks in flight.
+        // A download interrupted earlier resumes from the chunks its progress file records.
+        try (ChunkFileWriter fileWriter = new ChunkFileWriter(targetFile, manifest)) {
+            BitSet resumedChunks = fileWriter.getCompletedChunks();
+            scheduler.markCompleted(resumedChunks);
+            for (int chunkID = resumedChunks.nextSetBit(0); chunkID >= 0; chunkID = resumedChunks.nextSetBit(chunkID + 1)) {
+                transfer.addBytesReceived(fileWriter.chunkLength(chunkID));
+            }
+            BitSet localChunks = deltaSync ? copyFromOldCopy(transfer, oldCopy, nodesWithFile, manifest, fileWriter, resumedChunks) : new BitSet();
+            boolean deltaFailed = localChunks == null;
+            if (deltaFailed) {
+                node.deltaFallbacks.increment();
+                localChunks = new BitSet();
+            }
+            scheduler.markCompleted(localChunks);
+            for (int chunkID = localChunks.nextSetBit(0); chunkID >= 0; chunkID = localChunks.nextSetBit(chunkID + 1)) {
+                transfer.addBytesReceived(fileWriter.chunkLength(chunkID));
+                node.deltaReusedBytes.add(fileWriter.chunkLength(chunkID));
+            }
+            transfer.update(Transfer.State.RUNNING, deltaFailed
+                    ? "Could not compare with the local copy, fetching every chunk from " + nodesWithFile.size() + " node(s)"
+                    : !localChunks.isEmpty()
+                    ? localChunks.cardinality() + " of " + manifest.getChunkCount() + " chunks found in the local copy, fetching the rest"
+                    : resumedChunks.isEmpty()
+                    ? "Downloading from " + nodesWithFile.size() + " node(s) in " + chunkSize / 1024 + " KB chunks"
+                    : "Resumed with " + resumedChunks.cardinality() + " chunks already downloaded");
+
+            node.registerPartialDownload(fileName, fileWriter);
+            ScheduledFuture<?> availabilityRefresh = partialNodes.isEmpty() ? null : availabilityPoller.scheduleWithFixedDelay(
+                    () -> refreshAvailability(fileName, partialNodes, scheduler), AVAILABILITY_REFRESH_MILLIS, AVAILABILITY_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+            boolean completed;
+            try {
+                // Completed inside, so the finished file is in place before the partial download is unregistered
+                completed = scheduler.runBatched(
+                    (nodeIP, chunkIDs) -> {
+                        if (node.peerLiveness.isExpired(nodeIP)) {
+                            return null; // A node that stopped sending beacons fails at once instead of waiting on a timeout
+                        }
+                        // Requests wait for the transfer's own limit, then the node's limits; concurrent transfers share those fairly
+                        long requestBytes = 0;
+                        for (int chunkID : chunkIDs) {
+                            requestBytes += scheduler.expectedLength(chunkID);
+                        }
+                        transfer.acquireBandwidth(requestBytes);
+                        node.downloadLimiter.acquire(nodeIP, transfer, requestBytes);
+                        return node.requestFileChunks(fileName, nodeIP, chunkIDs, downloadChunkSize);
+                    },
+                    (nodeIP, chunkID, chunkData) -> {
+                        fileWriter.writeChunk(chunkID, chunkData);
+                        transfer.addBytesReceived(chunkData.length);
+                    });
+                if (completed) {
+                    fileWriter.complete();
+                }
+            } finally {
+                if (availabilityRefresh != null) {
+                    availabilityRefresh.cancel(false);
+                }
+                node.unregisterPartialDownload(fileName, fileWriter);
+            }
+            if (completed) {
+                transfer.update(Transfer.State.COMPLETED, "Completed");
+            } else {
+                transfer.update(Transfer.State.FAILED, "Failed");
+            }
+        }
+    }
+
+    // Copies the chunks the older copy still holds into the download. The old copy stays in place, and shared,
+    // until the new version is complete. Returns null if no node sent checksums or the old copy could not be read;
+    // the download then fetches every chunk.
+    private BitSet copyFromOldCopy(Transfer transfer, Path oldCopy, List<String> nodesWithFile, ChunkManifest manifest,
+                                   ChunkFileWriter fileWriter, BitSet resumedChunks) {
+        transfer.update(Transfer.State.RUNNING, "Looking for unchanged chunks in the local copy");
+        for (String nodeIP : nodesWithFile) {
+            int[] checksums = node.requestChunkChecksums(transfer.getFileName(), nodeIP, manifest.getChunkSize());
+            if (checksums != null && checksums.length == manifest.getChunkCount()) {
+                try {
+                    return DeltaSync.copyMatchingChunks(oldCopy, manifest, checksums, fileWriter, resumedChunks);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Partial peers gain chunks while we download; a peer that finished is treated as a whole copy from then on
+    private void refreshAvailability(String fileName, List<String> partialNodes, ChunkScheduler scheduler) {
+        try {
+            for (String nodeIP : partialNodes) {
+                ChunkAvailability availability = node.requestAvailability(fileName, nodeIP);
+                if (availability.isPartial()) {
+                    scheduler.updateAvailability(nodeIP, availability.getChunks());
+                } else if (availability.isComplete()) {
+                    scheduler.updateAvailability(nodeIP, null);
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // A failed refresh must not cancel the next ones
+        }
+    }
+
+    private void publish() {
+        try {
+            List<Transfer.Progress> updates = new ArrayList<>();
+            for (Transfer transfer : transfers.values()) {
+                Transfer.Progress progress = transfer.publish();
+                if (progress != null) {
+                    updates.add(progress);
+                }
+            }
+            if (updates.isEmpty()) {
+                return;
+            }
+            for (TransferListener listener : listeners) {
+                listener.onTransfersUpdated(updates);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // A failing listener must not stop future ticks
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
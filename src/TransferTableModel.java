@@ -0,0 +1,75 @@
+import javax.swing.table.AbstractTableModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Table of transfers, fed by TransferManager batches. Must only be used on the event thread.
+public class TransferTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMNS = { "File", "Progress", "Speed", "Status" };
+
+    private final List<Transfer.Progress> rows = new ArrayList<>();
+    private final Map<Integer, Integer> rowsByTransferId = new HashMap<>();
+
+    // Replaces the rows of transfers already shown and appends new ones, repainting only what changed
+    public void apply(List<Transfer.Progress> updates) {
+        for (Transfer.Progress progress : updates) {
+            Integer row = rowsByTransferId.get(progress.id);
+            if (row != null) {
+                rows.set(row, progress);
+                fireTableRowsUpdated(row, row);
+            } else {
+                row = rows.size();
+                rows.add(progress);
+                rowsByTransferId.put(progress.id, row);
+                fireTableRowsInserted(row, row);
+            }
+        }
+    }
+
+    // Transfers still running keep their rows, so their later updates have somewhere to go
+    public void clearFinished() {
+        rows.removeIf(Transfer.Progress::isFinished);
+        rowsByTransferId.clear();
+        for (int row = 0; row < rows.size(); row++) {
+            rowsByTransferId.put(rows.get(row).id, row);
+        }
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Transfer.Progress progress = rows.get(row);
+        switch (column) {
+            case 0:
+                return progress.fileName;
+            case 1:
+                if (progress.totalBytes < 0) {
+                    return "";
+                }
+                return (progress.bytesReceived / 1024) + " KB / " + (progress.totalBytes / 1024) + " KB ("
+                        + String.format("%.2f", progress.getPercentage()) + "%)";
+            case 2:
+                return progress.state == Transfer.State.RUNNING ? String.format("%.1f KB/s", progress.bytesPerSecond / 1024) : "";
+            default:
+                return progress.message;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// Binary session frames, spoken from protocol 4 on.
+// Request:  <varint request ID> <opcode byte> <varint payload length> <payload>
+// Response: <varint request ID> <varint payload length> <payload>
+// A batched chunk request takes consecutive request IDs starting at its own, one per chunk, and every chunk
+// comes back as its own response. File names are UTF-8 of any length and may contain any character.
+// The helpers work on buffers owned by the caller, so framing a request or a response allocates nothing.
+public class WireProtocol {
+    public static final int OP_FILE_SIZE = 1;       // <name>; answered with an 8-byte size, -1 if missing
+    public static final int OP_CHUNK = 2;           // <varint chunk size> <varint chunk ID> <name>
+    public static final int OP_CHUNKS = 3;          // <varint chunk size> <varint count> <varint chunk ID>... <name>
+    public static final int OP_MANIFEST = 4;        // <varint chunk size> <name>
+    public static final int OP_CATALOG = 5;         // <zigzag varlong since version>
+    public static final int OP_HAVE = 6;            // <name>; answered with a ChunkAvailability. Protocol 5
+    // Many files in one request, protocol 6. Both take <varint count> (<varint name length> <name>)...
+    public static final int OP_FILE_INFO = 7;       // Answered with a zigzag varlong size per name, -1 if not here in full
+    public static final int OP_FILES = 8;           // Answered with <zigzag varlong size> <SHA-256> <contents> per name, size -1 if not sent
+    public static final int OP_CHECKSUMS = 9;       // <varint chunk size> <name>; a 4-byte DeltaSync checksum per chunk. Protocol 8
+    // Flag on OP_CHUNK and OP_CHUNKS, protocol 7: the downloader takes deflated chunks, and every answer
+    // starts with a ChunkCompression encoding byte
+    public static final int ACCEPTS_DEFLATE = 0x80;
+    public static final int MAX_BATCH_CHUNKS = 64;
+    public static final int MAX_BATCH_NAMES = 256;
+    public static final int MAX_PACKED_FILE_BYTES = 1024 * 1024; // Larger files are not sent whole by OP_FILES
+    public static final int MAX_PACKED_BYTES = 4 * 1024 * 1024; // Contents of one OP_FILES answer; files past it are not sent
+    public static final int MAX_REQUEST_BYTES = 64 * 1024 + 16 * MAX_BATCH_CHUNKS; // Bounds the server's request buffer
+    public static final int MAX_HEADER_BYTES = 5 + 1 + 5;
+    // Bounds what a downloader allocates for one response: well above the largest chunk and an OP_FILES answer,
+    // and the manifest of a 64 GB file cut in the smallest chunks
+    public static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+
+    // Negative ints take five bytes
+    public static int varIntSize(int value) {
+        return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    public static int varLongSize(long value) {
+        return (70 - Long.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    // Unsigned LEB128
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int getVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("Truncated varint");
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    public static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("Truncated varint");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Bytes putUtf8 writes for the string
+    public static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Payload of OP_FILE_INFO and OP_FILES
+    public static int namesSize(List<String> names) {
+        int size = varIntSize(names.size());
+        for (String name : names) {
+            int length = utf8Length(name);
+            size += varIntSize(length) + length;
+        }
+        return size;
+    }
+
+    public static void putNames(ByteBuffer buffer, List<String> names) {
+        putVarInt(buffer, names.size());
+        for (String name : names) {
+            putVarInt(buffer, utf8Length(name));
+            putUtf8(buffer, name);
+        }
+    }
+
+    // Same bytes as text.getBytes(UTF_8), written straight into the buffer; a lone surrogate becomes '?'
+    public static void putUtf8(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                        .put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    // Decodes file names on the server and hands back the previous String when the bytes repeat,
+    // which they do for every chunk request of a download. One per session reader; not thread-safe.
+    public static class NameDecoder {
+        private byte[] lastBytes = new byte[0];
+        private int lastLength = -1;
+        private String lastName;
+
+        public String decode(ByteBuffer buffer, int length) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+            if (length == lastLength && Arrays.equals(array, offset, offset + length, lastBytes, 0, length)) {
+                return lastName;
+            }
+            if (lastBytes.length < length) {
+                lastBytes = new byte[Math.max(length, 64)];
+            }
+            System.arraycopy(array, offset, lastBytes, 0, length);
+            lastLength = length;
+            lastName = new String(array, offset, length, StandardCharsets.UTF_8);
+            return lastName;
+        }
+    }
+}
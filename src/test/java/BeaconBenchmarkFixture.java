@@ -0,0 +1,16 @@
+import benchmarks.BeaconFixture;
+
+public class BeaconBenchmarkFixture implements BeaconFixture {
+    private static final String NODE_ID = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+    @Override
+    public byte[] encode(long catalogVersion, String sharedSecret) {
+        return new Beacon(NODE_ID, catalogVersion, sharedSecret).encode();
+    }
+
+    @Override
+    public long decode(byte[] datagram, byte[] sharedSecret) {
+        Beacon beacon = Beacon.decode(datagram, 0, datagram.length, sharedSecret);
+        return beacon != null ? beacon.catalogVersion : -1;
+    }
+}
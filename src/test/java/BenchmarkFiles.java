@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Files the benchmark fixtures share
+class BenchmarkFiles {
+    static final String NAME = "p2p-benchmark.bin";
+
+    // Random data, so compression and the chunk cache see what a real file would give them
+    static Path create(Path folder, long size) throws IOException {
+        Path path = folder.resolve(NAME);
+        byte[] block = new byte[64 * 1024];
+        new Random(471).nextBytes(block);
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return path;
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    static void waitForServer(NodeThread node) throws InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            if (node.getFileSize(NAME) > 0 && node.requestFileSize(NAME, "127.0.0.1") > 0) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("Chunk server did not start");
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import benchmarks.CatalogFixture;
+
+public class CatalogBenchmarkFixture implements CatalogFixture {
+    private static final int FILES_PER_FOLDER = 1000;
+    private static final String PEER_IP = "10.0.0.1";
+
+    private Path root;
+    private SharedFileCatalog catalog;
+    private final PeerRegistry registry = new PeerRegistry();
+
+    @Override
+    public void createFiles(int fileCount) throws IOException {
+        root = Files.createTempDirectory("p2p-benchmark-catalog");
+        List<String> names = new ArrayList<>(fileCount);
+        for (int file = 0; file < fileCount; file++) {
+            Path folder = root.resolve("folder" + file / FILES_PER_FOLDER);
+            if (file % FILES_PER_FOLDER == 0) {
+                Files.createDirectory(folder);
+            }
+            Files.createFile(folder.resolve(CatalogFixture.fileName(file)));
+            names.add(CatalogFixture.fileName(file));
+        }
+        registry.markActive(PEER_IP);
+        registry.replaceFiles(PEER_IP, names);
+    }
+
+    @Override
+    public int index() {
+        if (catalog != null) {
+            catalog.stop();
+        }
+        catalog = new SharedFileCatalog(root.toString(), null);
+        catalog.start();
+        return catalog.size();
+    }
+
+    @Override
+    public boolean find(String name) {
+        return catalog.find(name) != null;
+    }
+
+    @Override
+    public int findPeers(String name) {
+        return registry.findPeersWithFile(name).size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        catalog.stop();
+        BenchmarkFiles.deleteRecursively(root);
+    }
+}
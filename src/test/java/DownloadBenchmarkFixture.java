@@ -0,0 +1,45 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import benchmarks.DownloadFixture;
+
+public class DownloadBenchmarkFixture implements DownloadFixture {
+    private Path sharedFolder;
+    private Path downloadFolder;
+    private NodeThread seed;
+    private Node downloader;
+    private final List<String> peers = new ArrayList<>();
+
+    @Override
+    public void start(long fileSize, int peerCount) throws Exception {
+        sharedFolder = Files.createTempDirectory("p2p-benchmark");
+        BenchmarkFiles.create(sharedFolder, fileSize);
+        seed = new NodeThread(sharedFolder.toString(), "benchmark", null, null);
+        seed.startChunkServer();
+        BenchmarkFiles.waitForServer(seed);
+
+        downloadFolder = Files.createTempDirectory("p2p-benchmark-download");
+        downloader = new Node(new Node.Config(downloadFolder.toString(), "benchmark"));
+        for (int peer = 1; peer <= peerCount; peer++) {
+            peers.add("127.0.0." + peer); // Each address reaches the same seeding node
+        }
+    }
+
+    @Override
+    public void download() throws Exception {
+        Files.deleteIfExists(downloadFolder.resolve(BenchmarkFiles.NAME));
+        downloader.download(BenchmarkFiles.NAME, peers).get(5, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        downloader.close();
+        seed.closePeerConnections();
+        seed.stopChunkServer();
+        BenchmarkFiles.deleteRecursively(downloadFolder);
+        BenchmarkFiles.deleteRecursively(sharedFolder);
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import benchmarks.TransferFixture;
+
+public class TransferBenchmarkFixture implements TransferFixture {
+    private Path sharedFolder;
+    private NodeThread node;
+
+    @Override
+    public void start(long fileSize) throws Exception {
+        sharedFolder = Files.createTempDirectory("p2p-benchmark");
+        BenchmarkFiles.create(sharedFolder, fileSize);
+        node = new NodeThread(sharedFolder.toString(), "benchmark", null, null);
+        node.startChunkServer();
+        BenchmarkFiles.waitForServer(node);
+    }
+
+    @Override
+    public void configure(boolean zeroCopy, long chunkCacheBytes) {
+        node.setZeroCopy(zeroCopy);
+        node.setChunkCacheSize(chunkCacheBytes);
+    }
+
+    @Override
+    public int requestChunk(int chunkID, int chunkSize) {
+        return node.requestFileChunk(BenchmarkFiles.NAME, "127.0.0.1", chunkID, chunkSize).length;
+    }
+
+    @Override
+    public long requestChunks(int[] chunkIDs, int chunkSize) {
+        long received = 0;
+        for (byte[] chunk : node.requestFileChunks(BenchmarkFiles.NAME, "127.0.0.1", chunkIDs, chunkSize)) {
+            received += chunk.length;
+        }
+        return received;
+    }
+
+    @Override
+    public int batchSize(int chunkSize) {
+        return ChunkScheduler.batchSizeFor(chunkSize);
+    }
+
+    @Override
+    public void stop() {
+        node.closePeerConnections();
+        node.stopChunkServer();
+        try {
+            BenchmarkFiles.deleteRecursively(sharedFolder);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
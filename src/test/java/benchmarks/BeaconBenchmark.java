@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Beacon encoding and parsing, for a beacon of our group and one of another group on the same network
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeaconBenchmark {
+    private static final String SECRET = "benchmark";
+
+    private BeaconFixture fixture;
+    private byte[] datagram;
+    private final byte[] secret = SECRET.getBytes(StandardCharsets.UTF_8);
+    private final byte[] otherSecret = "another group".getBytes(StandardCharsets.UTF_8);
+    private long catalogVersion;
+
+    @Setup(Level.Trial)
+    public void start() {
+        fixture = Fixtures.load("BeaconBenchmarkFixture", BeaconFixture.class);
+        datagram = fixture.encode(42, SECRET);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return fixture.encode(catalogVersion++, SECRET);
+    }
+
+    @Benchmark
+    public long decode() {
+        return fixture.decode(datagram, secret);
+    }
+
+    @Benchmark
+    public long decodeForeign() {
+        return fixture.decode(datagram, otherSecret);
+    }
+}
@@ -0,0 +1,9 @@
+package benchmarks;
+
+// What broadcastEcho sends and what listenForEcho makes of a datagram
+public interface BeaconFixture {
+    byte[] encode(long catalogVersion, String sharedSecret);
+
+    // The catalog version, or -1 if the datagram belongs to another group
+    long decode(byte[] datagram, byte[] sharedSecret);
+}
@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Name lookups as findFileInSharedFolder and a download's peer search do them, hits and misses mixed,
+// and building the shared folder index from scratch
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBenchmark {
+    private static final int LOOKUP_NAMES = 4096; // A power of two
+
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    private CatalogFixture fixture;
+    private final String[] names = new String[LOOKUP_NAMES];
+    private int nextName;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        fixture = Fixtures.load("CatalogBenchmarkFixture", CatalogFixture.class);
+        fixture.createFiles(files);
+        fixture.index();
+        Random random = new Random(471);
+        for (int i = 0; i < names.length; i++) {
+            String name = CatalogFixture.fileName(random.nextInt(files));
+            names[i] = i % 4 == 0 ? "missing-" + name : name; // One in four is not there
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean find() {
+        return fixture.find(names[nextName++ & (LOOKUP_NAMES - 1)]);
+    }
+
+    @Benchmark
+    public int findPeers() {
+        return fixture.findPeers(names[nextName++ & (LOOKUP_NAMES - 1)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public int index() {
+        return fixture.index();
+    }
+}
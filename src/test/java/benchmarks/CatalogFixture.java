@@ -0,0 +1,23 @@
+package benchmarks;
+
+import java.io.IOException;
+
+// The shared folder index, and the registry of files peers advertise, both holding the same names
+public interface CatalogFixture {
+    static String fileName(int file) {
+        return "file-" + file + ".bin";
+    }
+
+    // Empty files named by fileName, a thousand to a folder, and a peer advertising the same names
+    void createFiles(int fileCount) throws IOException;
+
+    // Indexes the folder from scratch and returns the number of files found
+    int index();
+
+    boolean find(String name);
+
+    // Returns the number of peers that have the file
+    int findPeers(String name);
+
+    void close() throws IOException;
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A whole download end to end, from manifest to the file in place, spread over in-process peers
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+    private static final long FILE_SIZE = 32L * 1024 * 1024;
+
+    @Param({"1", "2", "4"})
+    public int peers;
+
+    private DownloadFixture fixture;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        fixture = Fixtures.load("DownloadBenchmarkFixture", DownloadFixture.class);
+        fixture.start(FILE_SIZE, peers);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        fixture.stop();
+    }
+
+    @Benchmark
+    public void download() throws Exception {
+        fixture.download();
+    }
+}
@@ -0,0 +1,12 @@
+package benchmarks;
+
+// A seeding node, and a downloading node that reaches it under several 127.0.0.x addresses as separate peers.
+// Needs Linux loopback routing.
+public interface DownloadFixture {
+    void start(long fileSize, int peerCount) throws Exception;
+
+    // The whole file through Node, the earlier copy deleted first
+    void download() throws Exception;
+
+    void stop() throws Exception;
+}
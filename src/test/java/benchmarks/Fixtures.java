@@ -0,0 +1,18 @@
+package benchmarks;
+
+// The application lives in the default package, which code in a package cannot name, and JMH only accepts
+// benchmarks in a package. So each benchmark drives a fixture from the default package of src/test/java
+// through one of the interfaces here. The fixture is loaded by name once per trial, so the measured calls
+// are plain interface calls.
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Benchmark fixture " + className + " is missing", e);
+        }
+    }
+}
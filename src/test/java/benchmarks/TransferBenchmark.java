@@ -0,0 +1,100 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Chunk serve and receive throughput over loopback: sendFileChunk on the server, requestFileChunk on the client.
+// The score is requests per second; the "bytes" counter is the bytes per second received.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    private static final long FILE_SIZE = 32L * 1024 * 1024;
+
+    @Param({"64", "512", "8192"})
+    public int chunkKB;
+
+    // "cached" serves zero-copy with the chunk cache holding the whole file
+    @Param({"heap-copy", "zero-copy", "cached"})
+    public String mode;
+
+    private TransferFixture fixture;
+    private int chunkSize;
+    private int chunkCount;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Downloader {
+        public long bytes;
+        private int nextChunk;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            nextChunk = ThreadLocalRandom.current().nextInt(1 << 16); // Downloaders start at different chunks
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        fixture = Fixtures.load("TransferBenchmarkFixture", TransferFixture.class);
+        fixture.start(FILE_SIZE);
+        fixture.configure(!mode.equals("heap-copy"), mode.equals("cached") ? 2 * FILE_SIZE : 0);
+        chunkSize = chunkKB * 1024;
+        chunkCount = (int) (FILE_SIZE / chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        fixture.stop();
+    }
+
+    @Benchmark
+    public int requestChunk(Downloader downloader) {
+        return receive(downloader);
+    }
+
+    // As many downloaders as a swarm of a few peers sends at once
+    @Benchmark
+    @Threads(4)
+    public int requestChunkFourDownloaders(Downloader downloader) {
+        return receive(downloader);
+    }
+
+    // The batches a download sends at this chunk size, one frame each
+    @Benchmark
+    public long requestChunkBatch(Downloader downloader) {
+        int[] chunkIDs = new int[fixture.batchSize(chunkSize)];
+        for (int i = 0; i < chunkIDs.length; i++) {
+            chunkIDs[i] = downloader.nextChunk++ % chunkCount;
+        }
+        long received = fixture.requestChunks(chunkIDs, chunkSize);
+        downloader.bytes += received;
+        return received;
+    }
+
+    private int receive(Downloader downloader) {
+        int received = fixture.requestChunk(downloader.nextChunk++ % chunkCount, chunkSize);
+        downloader.bytes += received;
+        return received;
+    }
+}
@@ -0,0 +1,20 @@
+package benchmarks;
+
+// A node serving one file over the loopback chunk server, and the requests a downloader sends it
+public interface TransferFixture {
+    void start(long fileSize) throws Exception;
+
+    // Heap-copy or zero-copy serving, and how many bytes of popular chunks the server keeps in memory
+    void configure(boolean zeroCopy, long chunkCacheBytes);
+
+    // Returns the bytes received
+    int requestChunk(int chunkID, int chunkSize);
+
+    // All chunks in one frame; returns the bytes received
+    long requestChunks(int[] chunkIDs, int chunkSize);
+
+    // Chunks a download packs into one request at this size
+    int batchSize(int chunkSize);
+
+    void stop();
+}